@@ -0,0 +1,65 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills indexes added by a reload of the index spec from a label scan, in bulks sent one at a time
+ * so commits keep their share of the connections. Changes committed meanwhile are sent by the change
+ * source as usual; a document read by the scan just before such a change can still overwrite it,
+ * which elasticsearch.reconcile repairs.
+ */
+class ElasticSearchBackfill implements Runnable {
+    private final static Logger logger = Logger.getLogger(ElasticSearchBackfill.class.getName());
+    private static final int BULK_SIZE = 1000;
+
+    private final GraphDatabaseService db;
+    private final ElasticSearchEventHandler documents;
+    private final List<ElasticSearchRoutingTable.Route> routes;
+
+    ElasticSearchBackfill(GraphDatabaseService db, ElasticSearchEventHandler documents, List<ElasticSearchRoutingTable.Route> routes) {
+        this.db = db;
+        this.documents = documents;
+        this.routes = routes;
+    }
+
+    @Override
+    public void run() {
+        for (ElasticSearchRoutingTable.Route route : routes) {
+            if (Thread.currentThread().isInterrupted()) return;
+            try {
+                long count = backfill(route);
+                logger.info("ElasticSearch Integration: backfilled " + count + " documents for " + route);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "ElasticSearch Integration: backfill of " + route + " failed, run elasticsearch.reconcile to complete it", e);
+            }
+        }
+    }
+
+    private long backfill(ElasticSearchRoutingTable.Route route) {
+        long count = 0;
+        List<BulkableAction> bulk = new ArrayList<>(BULK_SIZE);
+        try (Transaction tx = db.beginTx(); ResourceIterator<Node> nodes = db.findNodes(Label.label(route.label))) {
+            while (nodes.hasNext() && !Thread.currentThread().isInterrupted()) {
+                bulk.addAll(documents.indexRequests(nodes.next(), route).values());
+                if (bulk.size() >= BULK_SIZE) {
+                    documents.send(bulk, false, false);
+                    count += bulk.size();
+                    bulk = new ArrayList<>(BULK_SIZE);
+                }
+            }
+            tx.success();
+        }
+        documents.send(bulk, false, false);
+        return count + bulk.size();
+    }
+}
@@ -0,0 +1,90 @@
+package org.neo4j.elasticsearch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer of change records, written by many committing threads and
+ * drained by a single worker.
+ *
+ * A record is an operation code, a node id and an optional payload, kept in parallel arrays
+ * so publishing a change allocates nothing. Producers claim a slot with a CAS on the tail and
+ * publish it through a per-slot sequence; when the buffer is full they wait for the worker.
+ */
+class ElasticSearchChangeBuffer {
+    private static final long FULL_WAIT_NANOS = 10_000;
+
+    private final int capacity;
+    private final int mask;
+    private final byte[] ops;
+    private final long[] nodeIds;
+    private final Object[] payloads;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    interface Consumer {
+        void accept(byte op, long nodeId, Object payload);
+    }
+
+    public ElasticSearchChangeBuffer(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.ops = new byte[this.capacity];
+        this.nodeIds = new long[this.capacity];
+        this.payloads = new Object[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+    }
+
+    public void put(byte op, long nodeId, Object payload) {
+        long seq;
+        while (true) {
+            seq = tail.get();
+            if (seq - head >= capacity) {
+                LockSupport.parkNanos(FULL_WAIT_NANOS);
+            } else if (tail.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        int slot = (int) (seq & mask);
+        ops[slot] = op;
+        nodeIds[slot] = nodeId;
+        payloads[slot] = payload;
+        published.lazySet(slot, seq + 1);
+    }
+
+    /**
+     * Hands up to {@code max} published records to the consumer, in the order they were claimed.
+     * Must only be called from the single worker thread owning this buffer.
+     */
+    public int drain(Consumer consumer, int max) {
+        long h = head;
+        int drained = 0;
+        while (drained < max) {
+            int slot = (int) (h & mask);
+            if (published.get(slot) != h + 1) break;
+            consumer.accept(ops[slot], nodeIds[slot], payloads[slot]);
+            payloads[slot] = null;
+            h++;
+            drained++;
+        }
+        head = h;
+        return drained;
+    }
+
+    /**
+     * Number of records claimed since the buffer was created.
+     */
+    public long published() {
+        return tail.get();
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
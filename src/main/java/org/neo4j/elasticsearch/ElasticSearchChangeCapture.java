@@ -0,0 +1,435 @@
+package org.neo4j.elasticsearch;
+
+import com.graphaware.tx.event.improved.api.LazyTransactionData;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Delete;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transaction event handler that keeps ElasticSearch work off the commit path.
+ *
+ * {@link #beforeCommit(TransactionData)} only records which nodes changed, plus id and labels of
+ * deleted nodes, and {@link #afterCommit(TransactionData, Changes)} publishes those records into
+ * per-worker ring buffers. Worker threads read the committed nodes, build the documents and send
+ * them in bulks. Changes of a node always go to the same worker, so they reach ElasticSearch in
+ * commit order.
+ */
+class ElasticSearchChangeCapture implements TransactionEventHandler<ElasticSearchChangeCapture.Changes> {
+    static final byte UPSERT = 1, DELETE = 2, ASSIGN_LABEL = 3;
+    /**
+     * Flag on an operation whose transaction asked for a refresh before its bulk returns.
+     */
+    static final byte REFRESH = 0x10;
+
+    private final static Logger logger = Logger.getLogger(ElasticSearchChangeCapture.class.getName());
+    private static final int BULK_SIZE = 1000;
+    private static final long IDLE_NANOS = 1_000_000;
+    private static final int MAX_FAILED_RANGES = 1000;
+
+    private final GraphDatabaseService db;
+    private final ElasticSearchEventHandler documents;
+    private final ElasticSearchChangeBuffer[] buffers;
+    private final Thread[] workers;
+    private final AtomicLongArray sent;
+    // per worker, record ranges [from, to) of bulks that failed, oldest dropped first
+    private final List<ArrayDeque<long[]>> failed = new ArrayList<>();
+    private ElasticSearchIndexWatermark watermark;
+    private volatile boolean running;
+
+    public ElasticSearchChangeCapture(GraphDatabaseService db, ElasticSearchEventHandler documents, int workerCount, int bufferSize) {
+        this.db = db;
+        this.documents = documents;
+        this.buffers = new ElasticSearchChangeBuffer[workerCount];
+        this.workers = new Thread[workerCount];
+        this.sent = new AtomicLongArray(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            buffers[i] = new ElasticSearchChangeBuffer(bufferSize);
+            failed.add(new ArrayDeque<>());
+            final int worker = i;
+            workers[i] = new Thread(() -> work(worker), "neo4j-elasticsearch-worker-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    public void setWatermark(ElasticSearchIndexWatermark watermark) {
+        this.watermark = watermark;
+    }
+
+    public void start() {
+        running = true;
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the workers once everything already published has been sent.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+            worker.join();
+        }
+    }
+
+    public int pending() {
+        int pending = 0;
+        for (ElasticSearchChangeBuffer buffer : buffers) {
+            pending += buffer.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Hands a change record to the worker responsible for the node.
+     */
+    public void publish(byte op, long nodeId, Object payload) {
+        buffers[(int) (nodeId % buffers.length)].put(op, nodeId, payload);
+    }
+
+    /**
+     * Number of records published to each worker so far.
+     */
+    public long[] published() {
+        long[] published = new long[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            published[i] = buffers[i].published();
+        }
+        return published;
+    }
+
+    /**
+     * True once each worker has sent at least the given number of records, as returned by {@link #published()}.
+     */
+    public boolean isSent(long[] published) {
+        for (int i = 0; i < published.length; i++) {
+            if (sent.get(i) < published[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * True when a bulk carrying some of the records published between the two counts failed. The records
+     * of other transactions published in between count as well, so it may report a failure too many.
+     */
+    public boolean isFailed(long[] from, long[] to) {
+        for (int i = 0; i < to.length; i++) {
+            if (to[i] <= from[i]) continue;
+            ArrayDeque<long[]> ranges = failed.get(i);
+            synchronized (ranges) {
+                for (long[] range : ranges) {
+                    if (range[0] < to[i] && range[1] > from[i]) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Progress of the records published between the two counts, as returned by {@link #published()}.
+     */
+    public ElasticSearchIndexWatermark.Indexing indexing(long[] from, long[] to) {
+        return new ElasticSearchIndexWatermark.Indexing() {
+            @Override
+            public boolean getAsBoolean() {
+                return isSent(to);
+            }
+
+            @Override
+            public boolean isFailed() {
+                return ElasticSearchChangeCapture.this.isFailed(from, to);
+            }
+        };
+    }
+
+    @Override
+    public Changes beforeCommit(TransactionData transactionData) throws Exception {
+        Changes changes = new Changes();
+        changes.refresh = ElasticSearchEventHandler.refreshRequested(transactionData);
+        Set<String> routingProperties = documents.getRoutingTable().getRoutingProperties();
+        Set<Node> createdNodes = new HashSet<>();
+        for (Node node : transactionData.createdNodes()) {
+            createdNodes.add(node);
+            changes.upsert(node.getId());
+        }
+        for (PropertyEntry<Node> propEntry : transactionData.assignedNodeProperties()) {
+            changes.upsert(propEntry.entity().getId());
+            if (!createdNodes.contains(propEntry.entity())) {
+                moved(transactionData, propEntry, routingProperties, changes);
+            }
+        }
+        for (PropertyEntry<Node> propEntry : transactionData.removedNodeProperties()) {
+            if (!transactionData.isDeleted(propEntry.entity()) && !createdNodes.contains(propEntry.entity())) {
+                changes.upsert(propEntry.entity().getId());
+                moved(transactionData, propEntry, routingProperties, changes);
+            }
+        }
+        for (LabelEntry labelEntry : transactionData.assignedLabels()) {
+            if (!transactionData.isDeleted(labelEntry.node())) {
+                changes.assignLabel(labelEntry.node().getId(), labelEntry.label());
+            }
+        }
+        for (LabelEntry labelEntry : transactionData.removedLabels()) {
+            if (!transactionData.isDeleted(labelEntry.node())) {
+                Node node = labelEntry.node();
+                changes.delete(node.getId(), new DeletedNode(ElasticSearchEventHandler.id(node), Collections.singletonList(labelEntry.label()),
+                        Collections.<String, Object>emptyMap()));
+            }
+        }
+        for (Node node : new LazyTransactionData(transactionData).getAllDeletedNodes()) {
+            Map<String, Object> routing = new HashMap<>();
+            for (Map.Entry<String, Object> property : node.getAllProperties().entrySet()) {
+                if (routingProperties.contains(property.getKey())) routing.put(property.getKey(), property.getValue());
+            }
+            changes.delete(node.getId(), new DeletedNode(ElasticSearchEventHandler.id(node), labels(node), routing));
+        }
+        if (watermark != null) {
+            watermark.beginCommit();
+        }
+        return changes;
+    }
+
+    /**
+     * A changed date property moves the node's documents to another time based index, the old ones are deleted.
+     * Without a previous value they were in the plain index.
+     */
+    private void moved(TransactionData transactionData, PropertyEntry<Node> propEntry, Set<String> routingProperties, Changes changes) {
+        if (!routingProperties.contains(propEntry.key()) || transactionData.isDeleted(propEntry.entity())) {
+            return;
+        }
+        Node node = propEntry.entity();
+        changes.delete(node.getId(), new DeletedNode(ElasticSearchEventHandler.id(node), labels(node),
+                Collections.singletonMap(propEntry.key(), propEntry.previouslyCommitedValue())));
+    }
+
+    private static List<Label> labels(Node node) {
+        List<Label> labels = new ArrayList<>();
+        for (Label label : node.getLabels()) {
+            labels.add(label);
+        }
+        return labels;
+    }
+
+    @Override
+    public void afterCommit(TransactionData transactionData, Changes changes) {
+        long[] before = published();
+        publish(changes);
+        if (watermark != null) {
+            watermark.committed(transactionData.getTransactionId(), indexing(before, published()));
+        }
+    }
+
+    void publish(Changes changes) {
+        byte flags = changes.refresh ? REFRESH : 0;
+        for (int i = 0; i < changes.size; i++) {
+            publish((byte) (changes.ops[i] | flags), changes.nodeIds[i], changes.payloads[i]);
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData transactionData, Changes changes) {
+        if (watermark != null) {
+            watermark.rolledBack();
+        }
+    }
+
+    private void work(int worker) {
+        ElasticSearchChangeBuffer buffer = buffers[worker];
+        ArrayDeque<SentBulk> unsent = new ArrayDeque<>();
+        while (running || buffer.size() > 0) {
+            acknowledge(worker, unsent);
+            Changes batch = new Changes();
+            int drained = buffer.drain((op, nodeId, payload) -> {
+                if ((op & REFRESH) != 0) {
+                    batch.refresh = true;
+                    op &= ~REFRESH;
+                }
+                if (op == UPSERT) {
+                    batch.upsert(nodeId);
+                } else if (op == ASSIGN_LABEL) {
+                    batch.assignLabel(nodeId, (Label) payload);
+                } else {
+                    batch.delete(nodeId, (DeletedNode) payload);
+                }
+            }, BULK_SIZE);
+            if (drained == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            ElasticSearchIndexWatermark.Indexing done = ElasticSearchIndexWatermark.Indexing.FAILED;
+            try {
+                done = documents.send(actions(batch), false, batch.refresh);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error reading changes for ElasticSearch ", e);
+            }
+            unsent.addLast(new SentBulk(done, drained));
+            acknowledge(worker, unsent);
+        }
+    }
+
+    /**
+     * Counts the records of the bulks ElasticSearch has as sent, in order; a bulk held by the outage
+     * buffer holds back the ones after it.
+     */
+    private void acknowledge(int worker, ArrayDeque<SentBulk> unsent) {
+        boolean changed = false;
+        while (!unsent.isEmpty() && unsent.peekFirst().done.getAsBoolean()) {
+            SentBulk bulk = unsent.pollFirst();
+            long from = sent.get(worker);
+            if (bulk.done.isFailed()) {
+                // recorded before the records count as sent, so a waiter never sees them sent but not failed
+                ArrayDeque<long[]> ranges = failed.get(worker);
+                synchronized (ranges) {
+                    ranges.addLast(new long[]{from, from + bulk.records});
+                    if (ranges.size() > MAX_FAILED_RANGES) ranges.pollFirst();
+                }
+            }
+            sent.addAndGet(worker, bulk.records);
+            changed = true;
+        }
+        if (changed && watermark != null) {
+            watermark.changed();
+        }
+    }
+
+    private Collection<BulkableAction> actions(Changes batch) {
+        Map<String, BulkableAction> actions = new LinkedHashMap<>();
+        // one table for the batch, a reload meanwhile applies from the next one
+        ElasticSearchRoutingTable table = documents.getRoutingTable();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < batch.size; i++) {
+                if (batch.ops[i] == UPSERT || batch.ops[i] == ASSIGN_LABEL) {
+                    try {
+                        Node node = db.getNodeById(batch.nodeIds[i]);
+                        add(actions, (batch.ops[i] == UPSERT ? documents.indexRequests(table, node) : documents.indexRequests(table, node, (Label) batch.payloads[i])).values());
+                    } catch (NotFoundException e) {
+                        // deleted by a later transaction, its delete record follows
+                    }
+                } else {
+                    add(actions, deleteRequests(table, batch.nodeIds[i], (DeletedNode) batch.payloads[i]));
+                }
+            }
+            tx.success();
+        }
+        return actions.values();
+    }
+
+    /**
+     * Deletes for the indexes of a record the node's documents don't go to anymore; the others were
+     * assigned again by a later transaction and are indexed from the node's current state.
+     */
+    private Collection<Delete> deleteRequests(ElasticSearchRoutingTable table, long nodeId, DeletedNode deleted) {
+        Node node;
+        try {
+            node = db.getNodeById(nodeId);
+        } catch (NotFoundException e) {
+            // without a document id the node went away before its label removal was sent
+            return deleted.id == null ? Collections.<Delete>emptyList() : documents.deleteRequests(table, deleted.id, deleted.properties, deleted.labels).values();
+        }
+        Map<String, Object> properties = ElasticSearchEventHandler.nodeToJson(node);
+        String nodeDocumentId = ElasticSearchEventHandler.id(node, properties);
+        if (deleted.id != null && !deleted.id.equals(nodeDocumentId)) {
+            return documents.deleteRequests(table, deleted.id, deleted.properties, deleted.labels).values();
+        }
+        // date properties the record doesn't carry haven't changed
+        Map<String, Object> routing = new HashMap<>(properties);
+        routing.putAll(deleted.properties);
+        List<Label> labels = deleted.labels == null ? labels(node) : deleted.labels;
+        List<Delete> deletes = new ArrayList<>(documents.deleteRequests(table, nodeDocumentId, routing, labels).values());
+        Set<String> current = documents.indexNames(table, properties, node.getLabels());
+        deletes.removeIf(delete -> current.contains(delete.getIndex()));
+        return deletes;
+    }
+
+    private static void add(Map<String, BulkableAction> actions, Collection<? extends BulkableAction> requests) {
+        for (BulkableAction request : requests) {
+            actions.put(request.getIndex() + '\u0000' + request.getId(), request);
+        }
+    }
+
+    /**
+     * Change records of one transaction, each node recorded at most once per operation.
+     */
+    static class Changes {
+        private final PrimitiveLongSet upserted = Primitive.longSet();
+        byte[] ops = new byte[8];
+        long[] nodeIds = new long[8];
+        Object[] payloads = new Object[8];
+        int size;
+        boolean refresh;
+
+        void upsert(long nodeId) {
+            if (upserted.add(nodeId)) {
+                add(UPSERT, nodeId, null);
+            }
+        }
+
+        /**
+         * Records a label assignment, unless the whole node is reindexed anyway.
+         */
+        void assignLabel(long nodeId, Label label) {
+            if (!upserted.contains(nodeId)) {
+                add(ASSIGN_LABEL, nodeId, label);
+            }
+        }
+
+        void delete(long nodeId, DeletedNode deleted) {
+            add(DELETE, nodeId, deleted);
+        }
+
+        private void add(byte op, long nodeId, Object payload) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                nodeIds = Arrays.copyOf(nodeIds, size * 2);
+                payloads = Arrays.copyOf(payloads, size * 2);
+            }
+            ops[size] = op;
+            nodeIds[size] = nodeId;
+            payloads[size] = payload;
+            size++;
+        }
+    }
+
+    private static class SentBulk {
+        final ElasticSearchIndexWatermark.Indexing done;
+        final int records;
+
+        SentBulk(ElasticSearchIndexWatermark.Indexing done, int records) {
+            this.done = done;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Document id, labels and date properties of the documents to delete. Id and labels are null when
+     * they have to be read from the node when sending.
+     */
+    static class DeletedNode {
+        final String id;
+        final List<Label> labels;
+        final Map<String, Object> properties;
+
+        DeletedNode(String id, List<Label> labels, Map<String, Object> properties) {
+            this.id = id;
+            this.labels = labels;
+            this.properties = properties;
+        }
+    }
+}
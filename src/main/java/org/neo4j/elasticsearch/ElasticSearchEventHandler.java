@@ -7,6 +7,7 @@ import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
 import io.searchbox.core.*;
+import io.searchbox.params.Parameters;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.event.LabelEntry;
@@ -17,7 +18,9 @@ import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.register.Register;
 
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,16 +29,33 @@ import java.util.logging.Logger;
 * @since 25.04.15
 */
 class ElasticSearchEventHandler implements TransactionEventHandler<Collection<BulkableAction>>, JestResultHandler<JestResult> {
+    /**
+     * Transaction meta data key, set to "wait_for" to have the transaction's bulk wait for an index refresh.
+     */
+    static final String REFRESH_META_DATA = "elasticsearch.refresh";
+
     private final JestClient client;
     private final static Logger logger = Logger.getLogger(ElasticSearchEventHandler.class.getName());
-    private final ElasticSearchIndexSettings indexSettings;
-    private final Set<String> indexLabels;
+    private volatile ElasticSearchRoutingTable routing;
     private boolean useAsyncJest = true;
+    private ElasticSearchQueryCache queryCache;
+    private ElasticSearchIndexWatermark watermark;
+    private ElasticSearchOutageBuffer outage;
 
     public ElasticSearchEventHandler(JestClient client, ElasticSearchIndexSettings indexSettings) {
         this.client = client;
-        this.indexSettings = indexSettings;
-        this.indexLabels = indexSettings.getIndexSpec().keySet();
+        this.routing = new ElasticSearchRoutingTable(indexSettings.getIndexSpec());
+    }
+
+    ElasticSearchRoutingTable getRoutingTable() {
+        return routing;
+    }
+
+    /**
+     * Swaps in a reloaded spec, transactions committing meanwhile use either the old or the new table.
+     */
+    void setRoutingTable(ElasticSearchRoutingTable routing) {
+        this.routing = routing;
     }
 
     @Override
@@ -43,129 +63,308 @@ class ElasticSearchEventHandler implements TransactionEventHandler<Collection<Bu
         ImprovedTransactionData improvedTransactionData = new LazyTransactionData(transactionData);
 
         Map<IndexId, BulkableAction> actions = new HashMap<>(1000);
+        // one table for the whole transaction, a reload swapping it meanwhile applies from the next one
+        ElasticSearchRoutingTable routing = this.routing;
+        Set<String> routingProperties = routing.getRoutingProperties();
+        // properties of each node read once per transaction, created nodes are fully indexed from them
+        Map<Node, Map<String, Object>> snapshot = new HashMap<>();
+        Set<Node> createdNodes = new HashSet<>(), indexedNodes = new HashSet<>();
 
         for (Node createNode : transactionData.createdNodes()) {
-            actions.putAll(indexRequests(createNode));
+            createdNodes.add(createNode);
+            indexedNodes.add(createNode);
+            actions.putAll(indexRequests(routing, createNode, properties(snapshot, createNode)));
         }
 
-
         for (PropertyEntry<Node> propEntry : transactionData.removedNodeProperties()) {
-            if (!transactionData.isDeleted(propEntry.entity())){
-                actions.putAll(updateRequests(propEntry.entity()));
+            Node node = propEntry.entity();
+            if (!transactionData.isDeleted(node) && !createdNodes.contains(node)) {
+                // whole documents, a partial update can't remove the property and a move needs the document in its new index
+                if (indexedNodes.add(node)) {
+                    actions.putAll(indexRequests(routing, node, properties(snapshot, node)));
+                }
+                if (routingProperties.contains(propEntry.key())) {
+                    actions.putAll(moveRequests(routing, node, properties(snapshot, node), propEntry.key(), propEntry.previouslyCommitedValue()));
+                }
             }
         }
 
         for (Node deleteNode : improvedTransactionData.getAllDeletedNodes()) {
-            actions.putAll(deleteRequests(deleteNode));
+            actions.putAll(deleteRequests(routing, deleteNode));
         }
 
         for (PropertyEntry<Node> propEntry : transactionData.assignedNodeProperties()) {
-            actions.putAll(indexRequests(propEntry.entity()));
+            Node node = propEntry.entity();
+            if (createdNodes.contains(node) || transactionData.isDeleted(node)) {
+                continue;
+            }
+            if (indexedNodes.add(node)) {
+                actions.putAll(indexRequests(routing, node, properties(snapshot, node)));
+            }
+            // without a previous value the documents move out of the plain index
+            if (routingProperties.contains(propEntry.key())) {
+                actions.putAll(moveRequests(routing, node, properties(snapshot, node), propEntry.key(), propEntry.previouslyCommitedValue()));
+            }
+        }
+
+        for (LabelEntry labelEntry : transactionData.assignedLabels()) {
+            if (!transactionData.isDeleted(labelEntry.node()) && !indexedNodes.contains(labelEntry.node())) {
+                actions.putAll(indexRequests(routing, labelEntry.node(), properties(snapshot, labelEntry.node()), labelEntry.label()));
+            }
+        }
+
+        for (LabelEntry labelEntry : transactionData.removedLabels()) {
+            if (!transactionData.isDeleted(labelEntry.node())) {
+                Node node = labelEntry.node();
+                Map<String, Object> properties = properties(snapshot, node);
+                Map<IndexId, Delete> deletes = deleteRequests(routing, id(node, properties), properties, Collections.singletonList(labelEntry.label()));
+                // the node's other labels may still route its documents to the same index
+                Set<String> current = indexNames(routing, properties, node.getLabels());
+                deletes.values().removeIf(delete -> current.contains(delete.getIndex()));
+                actions.putAll(deletes);
+            }
         }
 
+        if (watermark != null) {
+            watermark.beginCommit();
+        }
         return actions.isEmpty() ? Collections.<BulkableAction>emptyList() : actions.values();
     }
 
+    private static Map<String, Object> properties(Map<Node, Map<String, Object>> snapshot, Node node) {
+        return snapshot.computeIfAbsent(node, ElasticSearchEventHandler::nodeToJson);
+    }
+
     public void setUseAsyncJest(boolean useAsyncJest) {
         this.useAsyncJest = useAsyncJest;
     }
 
+    public void setQueryCache(ElasticSearchQueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public void setWatermark(ElasticSearchIndexWatermark watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * Buffers the actions while ElasticSearch is unreachable instead of sending them.
+     */
+    public void setOutageBuffer(ElasticSearchOutageBuffer outage) {
+        this.outage = outage;
+    }
+
+    static boolean refreshRequested(TransactionData transactionData) {
+        return "wait_for".equals(transactionData.metaData().get(REFRESH_META_DATA));
+    }
+
     @Override
     public void afterCommit(TransactionData transactionData, Collection<BulkableAction> actions) {
+        ElasticSearchIndexWatermark.Indexing indexed = send(actions, useAsyncJest, !actions.isEmpty() && refreshRequested(transactionData));
+        if (watermark != null) {
+            watermark.committed(transactionData.getTransactionId(), indexed);
+        }
+    }
+
+    /**
+     * Sends the actions as one bulk, the returned check turns true once the bulk has completed or failed,
+     * and tells which. While ElasticSearch is unreachable the actions go to the outage buffer and the check
+     * waits for it to drain them.
+     */
+    ElasticSearchIndexWatermark.Indexing send(Collection<BulkableAction> actions, boolean async, boolean refresh) {
         if (actions.isEmpty()) {
             
-            return;
+            return () -> true;
+        }
+        ElasticSearchOutageBuffer outage = this.outage;
+        if (outage != null) {
+            ElasticSearchIndexWatermark.Indexing buffered = outage.offer(actions, refresh);
+            if (buffered != null) {
+                return buffered;
+            }
+        }
+        BulkResultHandler resultHandler = new BulkResultHandler(actions, refresh);
+        if (queryCache != null) {
+            queryCache.beginWrite(resultHandler.indexNames);
         }
         try {
-            Bulk bulk = new Bulk.Builder()
-                    .addAction(actions).build();
-            if (useAsyncJest) {
-                client.executeAsync(bulk, this);
+            Bulk bulk = bulk(actions, refresh);
+            if (async) {
+                client.executeAsync(bulk, resultHandler);
             }
             else {
                 JestResult reponse = client.execute(bulk);
-                System.out.println(reponse.getErrorMessage());
-                System.out.println(reponse.getJsonObject());
+                resultHandler.completed(reponse);
             }
         } catch (Exception e) {
-            logger.log(Level.WARNING, "Error updating ElasticSearch ", e);
+            resultHandler.failed(e);
         }
+        return resultHandler;
     }
 
+    /**
+     * Sends the actions as one bulk and waits for it, invalidating the query cache like commits do.
+     * Used to drain the outage buffer and for reconcile repairs.
+     *
+     * @return the bulk result, null without actions
+     * @throws IOException also when ElasticSearch answers that it can't take the bulk now
+     */
+    JestResult execute(Collection<BulkableAction> actions, boolean refresh) throws IOException {
+        if (actions.isEmpty()) {
+            return null;
+        }
+        Set<String> indexNames = indexNames(actions);
+        if (queryCache != null) {
+            queryCache.beginWrite(indexNames);
+        }
+        try {
+            JestResult result = client.execute(bulk(actions, refresh));
+            if (unavailable(result)) {
+                throw new IOException("ElasticSearch rejected the bulk with status " + result.getResponseCode() + ": " + result.getErrorMessage());
+            }
+            completed(result);
+            return result;
+        } finally {
+            if (queryCache != null) {
+                queryCache.endWrite(indexNames);
+            }
+        }
+    }
+
+    /**
+     * True for answers of a cluster that is overloaded or not ready, the bulk can be sent again later.
+     */
+    static boolean unavailable(JestResult result) {
+        return result.getResponseCode() == 429 || result.getResponseCode() >= 500;
+    }
+
+    private static Bulk bulk(Collection<BulkableAction> actions, boolean refresh) {
+        Bulk.Builder bulkBuilder = new Bulk.Builder()
+                .addAction(actions);
+        if (refresh) {
+            bulkBuilder.setParameter(Parameters.REFRESH, "wait_for");
+        }
+        return bulkBuilder.build();
+    }
+
+    private Set<String> indexNames(Collection<BulkableAction> actions) {
+        Set<String> indexNames = new HashSet<>();
+        for (BulkableAction action : actions) {
+            indexNames.add(action.getIndex());
+        }
+        return indexNames;
+    }
+
+
+    Map<IndexId, Index> indexRequests(ElasticSearchRoutingTable routing, Node node) {
+        return indexRequests(routing, node, nodeToJson(node));
+    }
 
-    private Map<IndexId, Index> indexRequests(Node node) {
+    private Map<IndexId, Index> indexRequests(ElasticSearchRoutingTable routing, Node node, Map<String, Object> properties) {
         HashMap<IndexId, Index> reqs = new HashMap<>();
-        
+        String id = id(node, properties);
         for (Label l: node.getLabels()) {
-            String id = id(node);
-            String indexName = l.name().toLowerCase();
-            reqs.put(new IndexId(indexName, id), new Index.Builder(nodeToJson(node))
+            addIndexRequests(reqs, id, properties, routing.routes(l));
+        }
+        
+        return reqs;
+    }
+
+    /**
+     * Index requests for the indexes of one label only, used when just that label was assigned.
+     */
+    Map<IndexId, Index> indexRequests(ElasticSearchRoutingTable routing, Node node, Label label) {
+        return indexRequests(routing, node, nodeToJson(node), label);
+    }
+
+    private Map<IndexId, Index> indexRequests(ElasticSearchRoutingTable routing, Node node, Map<String, Object> properties, Label label) {
+        HashMap<IndexId, Index> reqs = new HashMap<>();
+        addIndexRequests(reqs, id(node, properties), properties, routing.routes(label));
+        return reqs;
+    }
+
+    /**
+     * Index request for a single route, used to backfill an index added by a reload.
+     */
+    Map<IndexId, Index> indexRequests(Node node, ElasticSearchRoutingTable.Route route) {
+        HashMap<IndexId, Index> reqs = new HashMap<>();
+        Map<String, Object> properties = nodeToJson(node);
+        addIndexRequests(reqs, id(node, properties), properties, Collections.singletonList(route));
+        return reqs;
+    }
+
+    /**
+     * One request per route of a label, each document projected from the properties read once for the node.
+     */
+    private void addIndexRequests(Map<IndexId, Index> reqs, String id, Map<String, Object> properties, List<ElasticSearchRoutingTable.Route> routes) {
+        for (ElasticSearchRoutingTable.Route route : routes) {
+            String indexName = route.indexName(properties);
+            reqs.put(new IndexId(indexName, id), new Index.Builder(route.spec.document(properties))
                     .index(indexName)
-                    .type(indexName+"Sync")
+                    .type(route.type)
                     .id(id)
                     .build());
         }
-        
-        return reqs;
     }
 
-    private Map<IndexId, Delete> deleteRequests(Node node, Label label) {
-        HashMap<IndexId, Delete> reqs = new HashMap<>();
-        
-        String id = id(node), indexName = label.name().toLowerCase();
-        reqs.put(new IndexId(indexName, id),
-                 new Delete.Builder(id).index(indexName).type(label.name()+"Sync").build());
-    	return reqs;
+    /**
+     * Physical indexes the documents of a node with these properties and labels go to.
+     */
+    Set<String> indexNames(ElasticSearchRoutingTable routing, Map<String, Object> properties, Iterable<Label> labels) {
+        Set<String> indexNames = new HashSet<>();
+        for (Label l : labels) {
+            for (ElasticSearchRoutingTable.Route route : routing.routes(l)) {
+                indexNames.add(route.indexName(properties));
+            }
+        }
+        return indexNames;
     }
 
-    private Map<IndexId, Delete> deleteRequests(String sketchID) {
-        HashMap<IndexId, Delete> reqs = new HashMap<>();
-        reqs.put(new IndexId("testIndex", sketchID),
-                new Delete.Builder(sketchID).build());
+    /**
+     * Deletes the documents a changed date property moved to another time based index, computed from the
+     * previous value so no search is needed to find them. A null previous value is the plain index name.
+     */
+    Map<IndexId, Delete> moveRequests(ElasticSearchRoutingTable routing, Node node, Map<String, Object> properties, String property, Object previousValue) {
+        Map<String, Object> previous = new HashMap<>(properties);
+        previous.put(property, previousValue);
+        Map<IndexId, Delete> reqs = deleteRequests(routing, id(node, properties), previous, node.getLabels());
+        Set<String> current = indexNames(routing, properties, node.getLabels());
+        reqs.values().removeIf(delete -> current.contains(delete.getIndex()));
         return reqs;
     }
 
-    private Map<IndexId, Delete> deleteRequests(Node node) {
-        System.out.println("Delete nodes");
-        System.out.println("--------------->" + node.toString());
-        System.out.println("--------------->" + node.getAllProperties());
+    private Map<IndexId, Delete> deleteRequests(ElasticSearchRoutingTable routing, Node node) {
+        Map<String, Object> properties = nodeToJson(node);
+        return deleteRequests(routing, id(node, properties), properties, node.getLabels());
+    }
 
+    /**
+     * Deletes for the indexes of the labels, the properties only need the date properties of time based indexes.
+     */
+    Map<IndexId, Delete> deleteRequests(ElasticSearchRoutingTable routing, String id, Map<String, Object> properties, Iterable<Label> labels) {
         HashMap<IndexId, Delete> reqs = new HashMap<>();
-        String id = id(node);
-        for (Label l: node.getLabels()) {
-            String indexName = l.name().toLowerCase();
-            reqs.put(new IndexId(indexName, id),
-                    new Delete.Builder(id).
-                            index(indexName)
-                            .type(indexName+"Sync")
-                            .build());
+        for (Label l: labels) {
+            for (ElasticSearchRoutingTable.Route route : routing.routes(l)) {
+                String indexName = route.indexName(properties);
+                reqs.put(new IndexId(indexName, id),
+                        new Delete.Builder(id).
+                                index(indexName)
+                                .type(route.type)
+                                .build());
+            }
         }
         return reqs;
     }
     
-    private Map<IndexId, Update> updateRequests(Node node) {
-    	HashMap<IndexId, Update> reqs = new HashMap<>();
-    	for (Label l: node.getLabels()) {
-            String id = id(node), indexName = l.name().toLowerCase();
-            reqs.put(new IndexId(indexName, id),
-                    new Update.Builder(nodeToJson(node))
-                              .type(l.name()+"Sync")
-                              .index(indexName)
-                              .id(id)
-                              .build());
-
-    	}
-    	return reqs;
+    static String id(Node node) {
+        return String.valueOf(node.getProperty(ElasticSearchRoutingTable.ID_PROPERTY, node.getId()));
     }
 
-    private String id(Node node) {
-        System.out.println(node.getAllProperties());
-        Map json = nodeToJson(node);
-        System.out.println(json);
-        return String.valueOf(json.getOrDefault("sketchID", node.getId()));
+    static String id(Node node, Map<String, Object> json) {
+        return String.valueOf(json.getOrDefault(ElasticSearchRoutingTable.ID_PROPERTY, node.getId()));
     }
 
-    private Map nodeToJson(Node node) {
+    static Map<String, Object> nodeToJson(Node node) {
         Map<String, Object> json = new LinkedHashMap<>();
         for (Map.Entry<String, Object> entry : node.getAllProperties().entrySet()) {
             json.put(entry.getKey(), entry.getValue());
@@ -175,6 +374,9 @@ class ElasticSearchEventHandler implements TransactionEventHandler<Collection<Bu
 
     @Override
     public void afterRollback(TransactionData transactionData, Collection<BulkableAction> actions) {
+        if (watermark != null) {
+            watermark.rolledBack();
+        }
     }
 
     @Override
@@ -190,6 +392,73 @@ class ElasticSearchEventHandler implements TransactionEventHandler<Collection<Bu
     public void failed(Exception e) {
         logger.log(Level.WARNING,"Problem Updating ElasticSearch ",e);
     }
+
+    /**
+     * Reports the outcome of one bulk, releases the query cache entries of the indexes it touched
+     * and advances the watermark. A bulk that couldn't reach ElasticSearch goes to the outage buffer.
+     */
+    private class BulkResultHandler implements JestResultHandler<JestResult>, ElasticSearchIndexWatermark.Indexing {
+        // released once the bulk is done, the watermark may keep the handler until then
+        volatile Collection<BulkableAction> actions;
+        final boolean refresh;
+        final Set<String> indexNames;
+        final AtomicBoolean done = new AtomicBoolean();
+        volatile boolean failed;
+        volatile ElasticSearchIndexWatermark.Indexing buffered;
+
+        BulkResultHandler(Collection<BulkableAction> actions, boolean refresh) {
+            this.actions = actions;
+            this.refresh = refresh;
+            this.indexNames = indexNames(actions);
+        }
+
+        @Override
+        public boolean getAsBoolean() {
+            ElasticSearchIndexWatermark.Indexing buffered = this.buffered;
+            return done.get() && (buffered == null || buffered.getAsBoolean());
+        }
+
+        @Override
+        public boolean isFailed() {
+            ElasticSearchIndexWatermark.Indexing buffered = this.buffered;
+            return failed || (buffered != null && buffered.isFailed());
+        }
+
+        @Override
+        public void completed(JestResult jestResult) {
+            if (outage != null && unavailable(jestResult)) {
+                buffered = outage.failed(actions, refresh);
+                endWrite();
+                return;
+            }
+            failed = !jestResult.isSucceeded() || jestResult.getErrorMessage() != null;
+            endWrite();
+            ElasticSearchEventHandler.this.completed(jestResult);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (outage != null && e instanceof IOException) {
+                buffered = outage.failed(actions, refresh);
+                endWrite();
+                return;
+            }
+            failed = true;
+            endWrite();
+            ElasticSearchEventHandler.this.failed(e);
+        }
+
+        private void endWrite() {
+            if (queryCache != null) {
+                queryCache.endWrite(indexNames);
+            }
+            actions = null;
+            done.set(true);
+            if (watermark != null) {
+                watermark.changed();
+            }
+        }
+    }
     
     private class IndexId {
         final String indexName, id;
@@ -1,12 +1,25 @@
 package org.neo4j.elasticsearch;
 
+import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.JestResult;
+import io.searchbox.cluster.Health;
 
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.kernel.lifecycle.LifecycleAdapter;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 import java.text.ParseException;
 
@@ -17,14 +30,41 @@ import java.text.ParseException;
 public class ElasticSearchExtension extends LifecycleAdapter {
     private final GraphDatabaseService gds;
     private final static Logger logger = Logger.getLogger(ElasticSearchExtension.class.getName());
+    // by store directory, procedures get a new facade of the database on every call
+    private final static Map<File, ElasticSearchExtension> instances = new ConcurrentHashMap<>();
+    static final String CHANGE_SOURCE_EVENT_HANDLER = "event_handler";
+    static final String CHANGE_SOURCE_TX_LOG = "tx_log";
     private final String hostName;
     private boolean enabled = true;
     private final boolean discovery;
     private ElasticSearchEventHandler handler;
     private JestClient client;
-    private ElasticSearchIndexSettings indexSettings;
+    private volatile ElasticSearchIndexSettings indexSettings;
+    private final long queryCacheMaxBytes;
+    private final long queryCacheRefreshInterval;
+    private ElasticSearchQueryCache queryCache;
+    private final boolean asyncCapture;
+    private final int asyncCaptureWorkers;
+    private final int asyncCaptureBufferSize;
+    private ElasticSearchChangeCapture changeCapture;
+    private final String changeSource;
+    private ElasticSearchTransactionLogTailer logTailer;
+    private ElasticSearchIndexWatermark watermark;
+    private final boolean indexTemplates;
+    private final String indexTemplateRefreshInterval;
+    private final int indexTemplateShards;
+    private ExecutorService backfillExecutor;
+    private final int outageBufferSize;
+    private final String outageBufferFile;
+    private final long healthCheckInterval;
+    private ElasticSearchOutageBuffer outageBuffer;
 
-    public ElasticSearchExtension(GraphDatabaseService gds, String hostName, String indexSpec, Boolean discovery, Boolean includeIDField, Boolean includeLabelsField) {
+    public ElasticSearchExtension(GraphDatabaseService gds, String hostName, String indexSpec, Boolean discovery, Boolean includeIDField, Boolean includeLabelsField,
+                                  Long queryCacheMaxBytes, Long queryCacheRefreshInterval,
+                                  Boolean asyncCapture, Integer asyncCaptureWorkers, Integer asyncCaptureBufferSize,
+                                  String changeSource,
+                                  Boolean indexTemplates, String indexTemplateRefreshInterval, Integer indexTemplateShards,
+                                  Integer outageBufferSize, String outageBufferFile, Long healthCheckInterval) {
         Map iSpec;
         try {
             iSpec = ElasticSearchIndexSpecParser.parseIndexSpec(indexSpec);
@@ -34,13 +74,37 @@ public class ElasticSearchExtension extends LifecycleAdapter {
             }
             this.indexSettings = new ElasticSearchIndexSettings(iSpec, includeIDField, includeLabelsField);
         } catch (ParseException e) {
-            logger.severe("ElasticSearch Integration: Can't define index twice");
+            logger.severe("ElasticSearch Integration: Can't define index twice or invalid date pattern: " + e.getMessage());
             enabled = false;
         }
         logger.info("Elasticsearch Integration: Running " + hostName + " - " + indexSpec);
         this.gds = gds;
         this.hostName = hostName;
         this.discovery = discovery;
+        this.queryCacheMaxBytes = queryCacheMaxBytes;
+        this.queryCacheRefreshInterval = queryCacheRefreshInterval;
+        this.asyncCapture = asyncCapture;
+        this.asyncCaptureWorkers = asyncCaptureWorkers;
+        this.asyncCaptureBufferSize = asyncCaptureBufferSize;
+        this.changeSource = changeSource;
+        this.indexTemplates = indexTemplates;
+        this.indexTemplateRefreshInterval = indexTemplateRefreshInterval;
+        this.indexTemplateShards = indexTemplateShards;
+        this.outageBufferSize = outageBufferSize;
+        this.outageBufferFile = outageBufferFile;
+        this.healthCheckInterval = healthCheckInterval;
+        if (!CHANGE_SOURCE_EVENT_HANDLER.equals(changeSource) && !CHANGE_SOURCE_TX_LOG.equals(changeSource)) {
+            logger.severe("ElasticSearch Integration: unknown change_source " + changeSource);
+            enabled = false;
+        }
+    }
+
+    static ElasticSearchExtension getInstance(GraphDatabaseService gds) {
+        return instances.get(storeDir(gds));
+    }
+
+    private static File storeDir(GraphDatabaseService gds) {
+        return ((GraphDatabaseAPI) gds).getStoreDir().getAbsoluteFile();
     }
 
     @Override
@@ -49,18 +113,186 @@ public class ElasticSearchExtension extends LifecycleAdapter {
 
         client = getJestClient(hostName, discovery);
         handler = new ElasticSearchEventHandler(client, indexSettings);
-        gds.registerTransactionEventHandler(handler);
+        if (outageBufferSize > 0) {
+            outageBuffer = new ElasticSearchOutageBuffer(new Connection(), outageBufferSize, outageBufferFile(), healthCheckInterval);
+            handler.setOutageBuffer(outageBuffer);
+        } else if (indexTemplates) {
+            ElasticSearchIndexTemplates.put(client, ElasticSearchIndexTemplates.templates(indexSettings.getIndexSpec(),
+                    indexTemplateRefreshInterval, indexTemplateShards));
+        }
+        if (queryCacheMaxBytes > 0) {
+            queryCache = new ElasticSearchQueryCache(client, queryCacheMaxBytes, queryCacheDirtyMillis());
+            handler.setQueryCache(queryCache);
+        }
+        if (CHANGE_SOURCE_TX_LOG.equals(changeSource)) {
+            changeCapture = new ElasticSearchChangeCapture(gds, handler, asyncCaptureWorkers, asyncCaptureBufferSize);
+            changeCapture.start();
+            File positionFile = new File(((GraphDatabaseAPI) gds).getStoreDir(), "elasticsearch-txlog.position");
+            logTailer = new ElasticSearchTransactionLogTailer(gds, changeCapture, handler::getRoutingTable, positionFile);
+            watermark = new ElasticSearchIndexWatermark(logTailer::getPosition);
+            logTailer.setWatermark(watermark);
+            logTailer.start();
+        } else if (asyncCapture) {
+            watermark = new ElasticSearchIndexWatermark(this::lastClosedTransactionId);
+            changeCapture = new ElasticSearchChangeCapture(gds, handler, asyncCaptureWorkers, asyncCaptureBufferSize);
+            changeCapture.setWatermark(watermark);
+            changeCapture.start();
+            gds.registerTransactionEventHandler(changeCapture);
+        } else {
+            watermark = new ElasticSearchIndexWatermark(this::lastClosedTransactionId);
+            handler.setWatermark(watermark);
+            gds.registerTransactionEventHandler(handler);
+        }
+        if (outageBuffer != null) {
+            outageBuffer.setWatermark(watermark);
+            outageBuffer.start();
+        }
+        instances.put(storeDir(gds), this);
         logger.info("Connecting to ElasticSearch");
     }
 
     @Override
     public void shutdown() throws Throwable {
         if (!enabled) return;
-        gds.unregisterTransactionEventHandler(handler);
+        instances.remove(storeDir(gds));
+        if (backfillExecutor != null) {
+            backfillExecutor.shutdownNow();
+        }
+        if (logTailer != null) {
+            logTailer.stop();
+            changeCapture.stop();
+            logTailer.savePosition();
+        } else if (changeCapture != null) {
+            gds.unregisterTransactionEventHandler(changeCapture);
+            changeCapture.stop();
+        } else {
+            gds.unregisterTransactionEventHandler(handler);
+        }
+        if (outageBuffer != null) {
+            outageBuffer.stop();
+        }
         client.shutdownClient();
         logger.info("Disconnected from ElasticSearch");
     }
 
+    JestClient getClient() {
+        return client;
+    }
+
+    /**
+     * How long results of a written index stay uncached, at least the refresh interval the templates give
+     * the indexes, a write only shows up in searches after a refresh.
+     */
+    private long queryCacheDirtyMillis() {
+        if (!indexTemplates) return queryCacheRefreshInterval;
+        long templateRefresh;
+        try {
+            templateRefresh = ElasticSearchIndexTemplates.millis(indexTemplateRefreshInterval);
+        } catch (NumberFormatException e) {
+            logger.warning("ElasticSearch Integration: can't read refresh interval " + indexTemplateRefreshInterval + ", query cache keeps its own");
+            return queryCacheRefreshInterval;
+        }
+        if (templateRefresh > queryCacheRefreshInterval) {
+            logger.info("ElasticSearch Integration: query cache waits " + templateRefresh + "ms after writes, the index template refresh interval");
+            return templateRefresh;
+        }
+        return queryCacheRefreshInterval;
+    }
+
+    ElasticSearchQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    ElasticSearchOutageBuffer getOutageBuffer() {
+        return outageBuffer;
+    }
+
+    ElasticSearchIndexWatermark getWatermark() {
+        return watermark;
+    }
+
+    long lastClosedTransactionId() {
+        return ((GraphDatabaseAPI) gds).getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastClosedTransactionId();
+    }
+
+    /**
+     * Compiles a new index spec and swaps it in without pausing commits. Only affects this run,
+     * elasticsearch.index_spec has to be changed as well to keep it after a restart.
+     *
+     * @return the routes added and removed by the new spec
+     */
+    synchronized Map<String, List<ElasticSearchRoutingTable.Route>> reloadIndexSpec(String indexSpec, boolean backfill) throws ParseException {
+        Map<String, List<ElasticSearchIndexSpec>> iSpec = ElasticSearchIndexSpecParser.parseIndexSpec(indexSpec);
+        if (iSpec.size() == 0) {
+            throw new ParseException("syntax error in index_spec " + indexSpec, 0);
+        }
+        ElasticSearchRoutingTable previous = handler.getRoutingTable();
+        ElasticSearchRoutingTable routing = new ElasticSearchRoutingTable(iSpec);
+        if (indexTemplates) {
+            ElasticSearchIndexTemplates.put(client, ElasticSearchIndexTemplates.templates(iSpec, indexTemplateRefreshInterval, indexTemplateShards));
+        }
+        indexSettings = new ElasticSearchIndexSettings(iSpec, indexSettings.getIncludeIDField(), indexSettings.getIncludeLabelsField());
+        handler.setRoutingTable(routing);
+        logger.info("Elasticsearch Integration: reloaded index spec " + indexSpec);
+
+        Map<String, List<ElasticSearchRoutingTable.Route>> changes = new LinkedHashMap<>();
+        changes.put("added", routing.added(previous));
+        changes.put("removed", previous.added(routing));
+        if (backfill && !changes.get("added").isEmpty()) {
+            if (backfillExecutor == null) {
+                backfillExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "neo4j-elasticsearch-backfill");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            backfillExecutor.submit(new ElasticSearchBackfill(gds, handler, changes.get("added")));
+        }
+        return changes;
+    }
+
+    ElasticSearchReconciler newReconciler() {
+        File checkpointFile = new File(((GraphDatabaseAPI) gds).getStoreDir(), "elasticsearch-reconcile.properties");
+        return new ElasticSearchReconciler(gds, client, handler, indexSettings, checkpointFile);
+    }
+
+    private File outageBufferFile() {
+        if (outageBufferFile == null || outageBufferFile.isEmpty()) {
+            return null;
+        }
+        File file = new File(outageBufferFile);
+        return file.isAbsolute() ? file : new File(((GraphDatabaseAPI) gds).getStoreDir(), outageBufferFile);
+    }
+
+    /**
+     * ElasticSearch as probed and drained by the outage buffer; index templates are put on every
+     * successful health check so indexes created by the buffered changes get them.
+     */
+    private class Connection implements ElasticSearchOutageBuffer.Connection {
+        @Override
+        public boolean healthy() {
+            try {
+                JestResult health = client.execute(new Health.Builder().build());
+                return health.isSucceeded() && !"red".equals(health.getValue("status"));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void connected() throws IOException {
+            if (indexTemplates) {
+                ElasticSearchIndexTemplates.putAndWait(client, ElasticSearchIndexTemplates.templates(indexSettings.getIndexSpec(),
+                        indexTemplateRefreshInterval, indexTemplateShards));
+            }
+        }
+
+        @Override
+        public void send(Collection<BulkableAction> actions, boolean refresh) throws IOException {
+            handler.execute(actions, refresh);
+        }
+    }
+
     private JestClient getJestClient(final String hostName, final Boolean discovery) throws Throwable {
       JestClientFactory factory = new JestClientFactory();
       factory.setHttpClientConfig(JestDefaultHttpConfigFactory.getConfigFor(hostName, discovery));
@@ -1,32 +1,152 @@
 package org.neo4j.elasticsearch;
 
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 class ElasticSearchIndexSpec {
 
+    static final String DEFAULT_DATE_PATTERN = "yyyy.MM.dd";
+
     private String indexName;
 	private Set<String> properties = new LinkedHashSet<String>();
+    private String dateProperty;
+    private String datePattern;
+    private DateTimeFormatter dateFormat;
     
     public ElasticSearchIndexSpec(String indexName, Set<String> properties) {
         this.indexName = indexName;
         this.properties = properties;
     }
+
+    /**
+     * Spec of a time based index: documents go to {@code indexName-<date>}, the date taken from
+     * {@code dateProperty} (epoch millis or an ISO-8601 string) and formatted in UTC with {@code datePattern}.
+     *
+     * @throws IllegalArgumentException for patterns with text fields like MMM, EEE or a, ElasticSearch
+     * rejects the uppercase index names they produce
+     */
+    public ElasticSearchIndexSpec(String indexName, Set<String> properties, String dateProperty, String datePattern) {
+        this(indexName, properties);
+        this.dateProperty = dateProperty;
+        this.datePattern = datePattern;
+        this.dateFormat = DateTimeFormatter.ofPattern(datePattern, Locale.ROOT).withZone(ZoneOffset.UTC);
+        for (int month = 1; month <= 12; month++) {
+            for (int hour : new int[]{0, 13}) {
+                String suffix = dateFormat.format(LocalDateTime.of(2017, month, month, hour, 0).toInstant(ZoneOffset.UTC));
+                if (!suffix.equals(suffix.toLowerCase(Locale.ROOT))) {
+                    throw new IllegalArgumentException("date pattern " + datePattern + " gives uppercase index names like " + indexName + "-" + suffix);
+                }
+            }
+        }
+    }
     
     public String getIndexName() {
 		return indexName;
 	}
+
+    /**
+     * Physical index of a node's document; time based specs without a date go to the plain index name.
+     */
+    public String getIndexName(Map<String, Object> nodeProperties) {
+        if (dateProperty == null) {
+            return indexName;
+        }
+        Instant date = toInstant(nodeProperties.get(dateProperty));
+        return date == null ? indexName : indexName + "-" + dateFormat.format(date);
+    }
+
+    /**
+     * The indexes this spec writes to, as an index pattern.
+     */
+    public String getIndexPattern() {
+        return dateProperty == null ? indexName : indexName + "-*";
+    }
+
+    public String getDateProperty() {
+        return dateProperty;
+    }
+
+    public boolean isTimeBased() {
+        return dateProperty != null;
+    }
     
     public Set<String> getProperties() {
 		return properties;
 	}
 
+    /**
+     * Document for this index out of all properties of a node, or all of them when no properties are declared.
+     */
+    public Map<String, Object> document(Map<String, Object> nodeProperties) {
+        if (properties == null) {
+            return nodeProperties;
+        }
+        Map<String, Object> document = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : nodeProperties.entrySet()) {
+            if (properties.contains(entry.getKey())) {
+                document.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return document;
+    }
+
+    static Instant toInstant(Object value) {
+        if (value instanceof Number) {
+            return Instant.ofEpochMilli(((Number) value).longValue());
+        }
+        if (value instanceof String) {
+            String text = (String) value;
+            try {
+                return OffsetDateTime.parse(text).toInstant();
+            } catch (DateTimeParseException e) {
+                // no offset, taken as UTC
+            }
+            try {
+                return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+            } catch (DateTimeParseException e) {
+                // no time either
+            }
+            try {
+                return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant();
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ElasticSearchIndexSpec)) return false;
+        ElasticSearchIndexSpec other = (ElasticSearchIndexSpec) o;
+        return indexName.equals(other.indexName) && Objects.equals(properties, other.properties)
+                && Objects.equals(dateProperty, other.dateProperty) && Objects.equals(datePattern, other.datePattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(indexName, properties, dateProperty, datePattern);
+    }
+
 	public String toString() {
         String s = this.getClass().getSimpleName() + " " + indexName + ": (";
-        for (String p: properties) {
-            s += p + ",";
+        if (properties != null) {
+            for (String p: properties) {
+                s += p + ",";
+            }
         }
         s += ")";
+        if (dateProperty != null) {
+            s += " by " + dateProperty;
+        }
         return s;
     }
 }
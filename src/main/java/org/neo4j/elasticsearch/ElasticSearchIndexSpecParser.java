@@ -8,11 +8,10 @@ import java.util.regex.Pattern;
 import org.neo4j.graphdb.DynamicLabel;
 import org.neo4j.graphdb.Label;
 
-import static java.util.Collections.singletonList;
-
 public class ElasticSearchIndexSpecParser {
     
-    private final static Pattern INDEX_SPEC_RE = Pattern.compile("(?<indexname>[a-z][a-z_-]+):(?<label>[A-Za-z0-9_]+)\\((?<props>[^\\)]+)\\)");
+    // index_name{dateProperty|yyyy.MM.dd}:Label(props) routes by date, the pattern is optional
+    private final static Pattern INDEX_SPEC_RE = Pattern.compile("(?<indexname>[a-z][a-z_-]+)(\\{(?<dateprop>[A-Za-z0-9_]+)(\\|(?<datepattern>[A-Za-z0-9._-]+))?\\})?:(?<label>[A-Za-z0-9_]+)\\((?<props>[^\\)]+)\\)");
     private final static Pattern PROPS_SPEC_RE = Pattern.compile("((?!=,)([A-Za-z0-9_]+))+");
     
     public static Map<String, List<ElasticSearchIndexSpec>> parseIndexSpec(String spec) throws ParseException {
@@ -31,10 +30,24 @@ public class ElasticSearchIndexSpecParser {
             
             String label = matcher.group("label");
             
-            if (map.containsKey(label)) {
-            	throw new ParseException(matcher.group(), 0);
+            // a label can feed several indexes, but each index only once
+            List<ElasticSearchIndexSpec> specs = map.computeIfAbsent(label, l -> new ArrayList<>());
+            for (ElasticSearchIndexSpec existing : specs) {
+                if (existing.getIndexName().equals(matcher.group("indexname"))) {
+                    throw new ParseException(matcher.group(), 0);
+                }
+            }
+            if (matcher.group("dateprop") == null) {
+                specs.add(new ElasticSearchIndexSpec(matcher.group("indexname"), props));
+            } else {
+                String datePattern = matcher.group("datepattern");
+                try {
+                    specs.add(new ElasticSearchIndexSpec(matcher.group("indexname"), props, matcher.group("dateprop"),
+                            datePattern == null ? ElasticSearchIndexSpec.DEFAULT_DATE_PATTERN : datePattern));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(matcher.group(), matcher.start("datepattern"));
+                }
             }
-            map.put(label,singletonList(new ElasticSearchIndexSpec(matcher.group("indexname"), props)));
         }
         
         return map;
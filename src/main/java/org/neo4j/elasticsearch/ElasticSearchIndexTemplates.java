@@ -0,0 +1,120 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.indices.template.PutTemplate;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index templates for the indexes of the index spec, put at startup so the indexes created by the
+ * first bulk, and every new time based index, get bulk friendly settings.
+ *
+ * Properties in Neo4j have no declared type, so the mapping only fixes the date properties of time
+ * based indexes and leaves the other declared properties to dynamic mapping.
+ */
+class ElasticSearchIndexTemplates {
+    private final static Logger logger = Logger.getLogger(ElasticSearchIndexTemplates.class.getName());
+    static final String TEMPLATE_PREFIX = "neo4j-";
+
+    /**
+     * Template name and body per index name; specs of several labels for one index share a template.
+     */
+    static Map<String, String> templates(Map<String, List<ElasticSearchIndexSpec>> indexSpec, String refreshInterval, int shards) {
+        Map<String, JsonObject> templates = new LinkedHashMap<>();
+        for (List<ElasticSearchIndexSpec> specs : indexSpec.values()) {
+            for (ElasticSearchIndexSpec spec : specs) {
+                JsonObject template = templates.get(spec.getIndexName());
+                if (template == null) {
+                    template = template(spec, refreshInterval, shards);
+                    templates.put(spec.getIndexName(), template);
+                }
+                if (spec.isTimeBased()) {
+                    JsonObject date = new JsonObject();
+                    date.addProperty("type", "date");
+                    date.addProperty("format", "strict_date_optional_time||epoch_millis");
+                    template.getAsJsonObject("mappings").getAsJsonObject(spec.getIndexName() + "Sync")
+                            .getAsJsonObject("properties").add(spec.getDateProperty(), date);
+                }
+            }
+        }
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonObject> entry : templates.entrySet()) {
+            result.put(TEMPLATE_PREFIX + entry.getKey(), entry.getValue().toString());
+        }
+        return result;
+    }
+
+    /**
+     * Milliseconds of an ElasticSearch time value like "5s" or "500ms", 0 for "-1" which disables refreshes.
+     */
+    static long millis(String timeValue) {
+        String value = timeValue.trim().toLowerCase();
+        if (value.equals("-1")) return 0;
+        String[] units = {"ms", "s", "m", "h", "d"};
+        long[] factors = {1, 1000, 60_000, 3_600_000, 86_400_000};
+        for (int i = 0; i < units.length; i++) {
+            if (value.endsWith(units[i]) && !(units[i].equals("s") && value.endsWith("ms"))) {
+                return Long.parseLong(value.substring(0, value.length() - units[i].length()).trim()) * factors[i];
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    private static JsonObject template(ElasticSearchIndexSpec spec, String refreshInterval, int shards) {
+        JsonObject settings = new JsonObject();
+        settings.addProperty("number_of_shards", shards);
+        settings.addProperty("refresh_interval", refreshInterval);
+
+        JsonObject type = new JsonObject();
+        type.add("properties", new JsonObject());
+        JsonObject mappings = new JsonObject();
+        mappings.add(spec.getIndexName() + "Sync", type);
+
+        JsonObject template = new JsonObject();
+        template.addProperty("template", spec.getIndexPattern());
+        template.add("settings", settings);
+        template.add("mappings", mappings);
+        return template;
+    }
+
+    /**
+     * Puts the templates one after the other, used before buffered changes create their indexes.
+     */
+    static void putAndWait(JestClient client, Map<String, String> templates) throws IOException {
+        for (Map.Entry<String, String> template : templates.entrySet()) {
+            JestResult result = client.execute(new PutTemplate.Builder(template.getKey(), template.getValue()).build());
+            if (!result.isSucceeded()) {
+                logger.warning("ElasticSearch Integration: could not put index template " + template.getKey() + ": " + result.getErrorMessage());
+            }
+        }
+    }
+
+    /**
+     * Puts the templates without waiting for ElasticSearch, failures are only logged.
+     */
+    static void put(JestClient client, Map<String, String> templates) {
+        for (Map.Entry<String, String> template : templates.entrySet()) {
+            client.executeAsync(new PutTemplate.Builder(template.getKey(), template.getValue()).build(), new JestResultHandler<JestResult>() {
+                @Override
+                public void completed(JestResult result) {
+                    if (result.isSucceeded()) {
+                        logger.fine("ElasticSearch Integration: put index template " + template.getKey());
+                    } else {
+                        logger.warning("ElasticSearch Integration: could not put index template " + template.getKey() + ": " + result.getErrorMessage());
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    logger.log(Level.WARNING, "ElasticSearch Integration: could not put index template " + template.getKey(), e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.neo4j.elasticsearch;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Monotonic "indexed up to" transaction id, so callers can wait until their writes are searchable.
+ *
+ * Every transaction whose changes go to ElasticSearch is pending until its bulk has completed.
+ * Transactions between {@link #beginCommit()} and {@link #committed(long, Indexing)} don't
+ * have an id yet, they hold the watermark below the last transaction committed when they started.
+ * Without anything pending the watermark is the last transaction the change source has seen.
+ *
+ * A transaction whose bulk failed still moves the watermark, later ones don't wait for it, but it is
+ * remembered as failed so waiting for it doesn't report its changes as indexed.
+ */
+class ElasticSearchIndexWatermark {
+    private static final long POLL_MILLIS = 10;
+    private static final int MAX_FAILED = 10_000;
+
+    /**
+     * Progress of the bulks carrying a transaction's changes, true once they completed or failed.
+     */
+    interface Indexing extends BooleanSupplier {
+        Indexing FAILED = new Indexing() {
+            @Override
+            public boolean getAsBoolean() {
+                return true;
+            }
+
+            @Override
+            public boolean isFailed() {
+                return true;
+            }
+        };
+
+        /**
+         * True when some of the changes didn't reach ElasticSearch, asked once the bulks are done.
+         */
+        default boolean isFailed() {
+            return false;
+        }
+    }
+
+    private final LongSupplier lastSeenTxId;
+    private final Map<Thread, Long> committing = new HashMap<>();
+    private final TreeMap<Long, Indexing> pending = new TreeMap<>();
+    private final TreeSet<Long> failed = new TreeSet<>();
+    private long indexedUpTo = -1;
+
+    /**
+     * @param lastSeenTxId last transaction id handed to the change source, e.g. the last closed transaction
+     */
+    public ElasticSearchIndexWatermark(LongSupplier lastSeenTxId) {
+        this.lastSeenTxId = lastSeenTxId;
+    }
+
+    /**
+     * Called from beforeCommit, in the committing thread.
+     */
+    public synchronized void beginCommit() {
+        committing.put(Thread.currentThread(), lastSeenTxId.getAsLong() + 1);
+    }
+
+    /**
+     * Called from afterCommit, in the committing thread, with a check telling when the changes are indexed.
+     */
+    public synchronized void committed(long txId, Indexing indexed) {
+        committing.remove(Thread.currentThread());
+        pending.put(txId, indexed);
+        prune();
+        notifyAll();
+    }
+
+    public synchronized void rolledBack() {
+        committing.remove(Thread.currentThread());
+        notifyAll();
+    }
+
+    /**
+     * Wakes up waiters after a bulk completed.
+     */
+    public synchronized void changed() {
+        prune();
+        notifyAll();
+    }
+
+    /**
+     * Drops the indexed transactions at the head, so pending only holds the ones still in flight
+     * whether or not anybody waits.
+     */
+    private void prune() {
+        while (!pending.isEmpty() && pending.firstEntry().getValue().getAsBoolean()) {
+            Map.Entry<Long, Indexing> indexed = pending.pollFirstEntry();
+            if (indexed.getValue().isFailed()) {
+                failed.add(indexed.getKey());
+                if (failed.size() > MAX_FAILED) failed.pollFirst();
+            }
+        }
+    }
+
+    synchronized int pending() {
+        return pending.size();
+    }
+
+    public synchronized long indexedUpTo() {
+        prune();
+        long upTo = lastSeenTxId.getAsLong();
+        if (!pending.isEmpty()) {
+            upTo = Math.min(upTo, pending.firstKey() - 1);
+        }
+        for (long firstPossibleTxId : committing.values()) {
+            upTo = Math.min(upTo, firstPossibleTxId - 1);
+        }
+        indexedUpTo = Math.max(indexedUpTo, upTo);
+        return indexedUpTo;
+    }
+
+    /**
+     * Waits until the given transaction is indexed, returns false on timeout and when its bulk failed.
+     */
+    public synchronized boolean await(long txId, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (indexedUpTo() < txId) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            // pending checks and the last seen id can change without notification, so wait in short slices
+            wait(Math.min(remaining, POLL_MILLIS));
+        }
+        return !failed.contains(txId);
+    }
+}
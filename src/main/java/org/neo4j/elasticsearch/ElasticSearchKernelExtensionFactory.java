@@ -26,6 +26,18 @@ public class ElasticSearchKernelExtensionFactory extends KernelExtensionFactory<
         public static Setting<Boolean> discovery = setting("elasticsearch.discovery", BOOLEAN, "false");
         public static Setting<Boolean> includeIDField = setting("elasticsearch.include_id_field", BOOLEAN, "true");
         public static Setting<Boolean> includeLabelsField = setting("elasticsearch.include_labels_field", BOOLEAN, "true");
+        public static Setting<Long> queryCacheMaxBytes = setting("elasticsearch.query_cache_max_bytes", LONG, "67108864");
+        public static Setting<Long> queryCacheRefreshInterval = setting("elasticsearch.query_cache_refresh_interval_ms", LONG, "1000");
+        public static Setting<Boolean> asyncCapture = setting("elasticsearch.async_capture", BOOLEAN, "false");
+        public static Setting<Integer> asyncCaptureWorkers = setting("elasticsearch.async_capture_workers", INTEGER, "2");
+        public static Setting<Integer> asyncCaptureBufferSize = setting("elasticsearch.async_capture_buffer_size", INTEGER, "65536");
+        public static Setting<String> changeSource = setting("elasticsearch.change_source", STRING, ElasticSearchExtension.CHANGE_SOURCE_EVENT_HANDLER);
+        public static Setting<Boolean> indexTemplates = setting("elasticsearch.index_templates", BOOLEAN, "true");
+        public static Setting<String> indexTemplateRefreshInterval = setting("elasticsearch.index_template_refresh_interval", STRING, "5s");
+        public static Setting<Integer> indexTemplateShards = setting("elasticsearch.index_template_shards", INTEGER, "1");
+        public static Setting<Integer> outageBufferSize = setting("elasticsearch.outage_buffer_size", INTEGER, "100000");
+        public static Setting<String> outageBufferFile = setting("elasticsearch.outage_buffer_file", STRING, (String) null);
+        public static Setting<Long> healthCheckInterval = setting("elasticsearch.health_check_interval_ms", LONG, "5000");
         // todo settings for label, property, indexName
     }
 
@@ -42,7 +54,19 @@ public class ElasticSearchKernelExtensionFactory extends KernelExtensionFactory<
                 config.get(ElasticSearchSettings.indexSpec),
                 config.get(ElasticSearchSettings.discovery),
                 config.get(ElasticSearchSettings.includeIDField),
-                config.get(ElasticSearchSettings.includeLabelsField));
+                config.get(ElasticSearchSettings.includeLabelsField),
+                config.get(ElasticSearchSettings.queryCacheMaxBytes),
+                config.get(ElasticSearchSettings.queryCacheRefreshInterval),
+                config.get(ElasticSearchSettings.asyncCapture),
+                config.get(ElasticSearchSettings.asyncCaptureWorkers),
+                config.get(ElasticSearchSettings.asyncCaptureBufferSize),
+                config.get(ElasticSearchSettings.changeSource),
+                config.get(ElasticSearchSettings.indexTemplates),
+                config.get(ElasticSearchSettings.indexTemplateRefreshInterval),
+                config.get(ElasticSearchSettings.indexTemplateShards),
+                config.get(ElasticSearchSettings.outageBufferSize),
+                config.get(ElasticSearchSettings.outageBufferFile),
+                config.get(ElasticSearchSettings.healthCheckInterval));
     }
 
     public interface Dependencies {
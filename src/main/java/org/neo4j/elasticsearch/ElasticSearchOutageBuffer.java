@@ -0,0 +1,374 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Delete;
+import io.searchbox.core.Index;
+import io.searchbox.core.Update;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the bulk actions while ElasticSearch can't be reached and drains them in full bulks once
+ * a health check succeeds, so commits neither fail nor lose their changes during an outage.
+ *
+ * The buffer starts out unavailable and a background thread probes the cluster, so startup doesn't
+ * wait for ElasticSearch. Actions beyond the capacity are dropped and counted, elasticsearch.reconcile
+ * repairs them. With a file the actions are kept on disk, length prefixed, and survive a restart.
+ *
+ * Actions are buffered in the order they arrive; an asynchronous bulk that fails after a later one
+ * was buffered is drained after it.
+ */
+class ElasticSearchOutageBuffer {
+    private final static Logger logger = Logger.getLogger(ElasticSearchOutageBuffer.class.getName());
+    private static final int BULK_SIZE = 1000;
+    private static final Gson GSON = new Gson();
+
+    /**
+     * The cluster as seen by the buffer.
+     */
+    interface Connection {
+        /**
+         * True when the cluster answers and isn't red.
+         */
+        boolean healthy();
+
+        /**
+         * Called after a successful health check, before the buffered actions are drained.
+         */
+        void connected() throws IOException;
+
+        /**
+         * Sends one bulk and waits for it, throws IOException when the cluster can't be reached or answers
+         * that it can't take the bulk now.
+         */
+        void send(Collection<BulkableAction> actions, boolean refresh) throws IOException;
+    }
+
+    private final Connection connection;
+    private final int capacity;
+    private final long probeInterval;
+    private final File file;
+    private final RandomAccessFile spool;
+    private final ArrayDeque<String> entries = new ArrayDeque<>();
+    private long readPosition;
+    private int size;
+    private long appended, dropped, outages;
+    private volatile long drained;
+    private boolean available;
+    private boolean dropWarned;
+    private volatile boolean running;
+    private Thread prober;
+    private ElasticSearchIndexWatermark watermark;
+
+    /**
+     * @param file where to keep the actions, null to keep them in memory
+     */
+    ElasticSearchOutageBuffer(Connection connection, int capacity, File file, long probeInterval) throws IOException {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.probeInterval = probeInterval;
+        this.file = file;
+        this.spool = file == null ? null : new RandomAccessFile(file, "rw");
+        if (spool != null) {
+            recover();
+        }
+    }
+
+    /**
+     * Counts the actions left by the previous run and cuts off an entry that was only partly written.
+     */
+    private void recover() throws IOException {
+        long length = spool.length(), position = 0;
+        while (position + 4 <= length) {
+            spool.seek(position);
+            int entryLength = spool.readInt();
+            if (position + 4 + entryLength > length) break;
+            position += 4 + entryLength;
+            size++;
+        }
+        if (position < length) {
+            spool.setLength(position);
+        }
+        appended = size;
+        if (size > 0) {
+            logger.info("ElasticSearch Integration: " + size + " buffered changes left in " + file + ", sending them once ElasticSearch is available");
+        }
+    }
+
+    public void setWatermark(ElasticSearchIndexWatermark watermark) {
+        this.watermark = watermark;
+    }
+
+    public void start() {
+        running = true;
+        prober = new Thread(this::probe, "neo4j-elasticsearch-health-check");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    public void stop() throws InterruptedException, IOException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        if (prober != null) {
+            prober.join();
+        }
+        synchronized (this) {
+            if (spool != null) {
+                spool.close();
+            } else if (size > 0) {
+                logger.warning("ElasticSearch Integration: " + size + " buffered changes not sent, run elasticsearch.reconcile");
+            }
+        }
+    }
+
+    /**
+     * Buffers the actions unless ElasticSearch is available and nothing is buffered before them.
+     *
+     * @return check turning true once the actions are drained, failed when some were dropped; null when they
+     * are to be sent directly
+     */
+    synchronized ElasticSearchIndexWatermark.Indexing offer(Collection<BulkableAction> actions, boolean refresh) {
+        return available ? null : buffer(actions, refresh);
+    }
+
+    /**
+     * Buffers the actions of a bulk that failed because ElasticSearch went away and starts probing.
+     */
+    synchronized ElasticSearchIndexWatermark.Indexing failed(Collection<BulkableAction> actions, boolean refresh) {
+        if (available) {
+            available = false;
+            outages++;
+            dropWarned = false;
+            logger.warning("ElasticSearch Integration: ElasticSearch unreachable, buffering changes");
+            notifyAll();
+        }
+        return buffer(actions, refresh);
+    }
+
+    private ElasticSearchIndexWatermark.Indexing buffer(Collection<BulkableAction> actions, boolean refresh) {
+        boolean lost = false;
+        for (BulkableAction action : actions) {
+            if (size >= capacity) {
+                drop();
+                lost = true;
+                continue;
+            }
+            String entry = encode(action, refresh);
+            if (spool == null) {
+                entries.addLast(entry);
+            } else {
+                try {
+                    byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+                    spool.seek(spool.length());
+                    spool.writeInt(bytes.length);
+                    spool.write(bytes);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "ElasticSearch Integration: could not write " + file, e);
+                    drop();
+                    lost = true;
+                    continue;
+                }
+            }
+            size++;
+            appended++;
+        }
+        long upTo = appended;
+        boolean failed = lost;
+        return new ElasticSearchIndexWatermark.Indexing() {
+            @Override
+            public boolean getAsBoolean() {
+                return drained >= upTo;
+            }
+
+            @Override
+            public boolean isFailed() {
+                return failed;
+            }
+        };
+    }
+
+    private void drop() {
+        dropped++;
+        if (!dropWarned) {
+            dropWarned = true;
+            logger.warning("ElasticSearch Integration: outage buffer full, dropping changes, run elasticsearch.reconcile once ElasticSearch is back");
+        }
+    }
+
+    private void probe() {
+        try {
+            while (running) {
+                synchronized (this) {
+                    while (running && available) {
+                        wait();
+                    }
+                }
+                try {
+                    if (running && connection.healthy()) {
+                        connection.connected();
+                        if (drain()) continue;
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "ElasticSearch Integration: ElasticSearch unreachable", e);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "ElasticSearch Integration: sending buffered changes failed", e);
+                }
+                synchronized (this) {
+                    if (running) wait(probeInterval);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Sends the buffered actions bulk by bulk and switches to direct sending once none are left.
+     *
+     * @return false when ElasticSearch went away again
+     */
+    private boolean drain() throws IOException {
+        while (running) {
+            Batch batch = next();
+            if (batch == null) return true;
+            try {
+                connection.send(batch.actions, batch.refresh);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "ElasticSearch Integration: ElasticSearch unreachable while draining", e);
+                return false;
+            }
+            remove(batch);
+        }
+        return false;
+    }
+
+    private synchronized Batch next() throws IOException {
+        if (size == 0) {
+            if (spool != null) {
+                spool.setLength(0);
+                readPosition = 0;
+            }
+            if (!available) {
+                logger.info("ElasticSearch Integration: ElasticSearch available, " + drained + " buffered changes sent");
+            }
+            available = true;
+            return null;
+        }
+        Batch batch = new Batch();
+        int count = Math.min(size, BULK_SIZE);
+        if (spool == null) {
+            Iterator<String> it = entries.iterator();
+            for (int i = 0; i < count; i++) {
+                batch.add(it.next());
+            }
+        } else {
+            spool.seek(readPosition);
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[spool.readInt()];
+                spool.readFully(bytes);
+                batch.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            batch.end = spool.getFilePointer();
+        }
+        return batch;
+    }
+
+    private void remove(Batch batch) {
+        synchronized (this) {
+            if (spool == null) {
+                for (int i = 0; i < batch.count; i++) {
+                    entries.pollFirst();
+                }
+            } else {
+                readPosition = batch.end;
+            }
+            size -= batch.count;
+            drained += batch.count;
+        }
+        if (watermark != null) {
+            watermark.changed();
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isAvailable() {
+        return available;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("available", available);
+        stats.put("size", (long) size);
+        stats.put("capacity", (long) capacity);
+        stats.put("fillRatio", (double) size / capacity);
+        stats.put("buffered", appended);
+        stats.put("drained", drained);
+        stats.put("dropped", dropped);
+        stats.put("outages", outages);
+        stats.put("file", file == null ? null : file.getPath());
+        return stats;
+    }
+
+    static String encode(BulkableAction action, boolean refresh) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("method", action.getBulkMethodName());
+        entry.addProperty("index", action.getIndex());
+        entry.addProperty("type", action.getType());
+        entry.addProperty("id", action.getId());
+        entry.addProperty("source", action.getData(GSON));
+        if (refresh) {
+            entry.addProperty("refresh", true);
+        }
+        return entry.toString();
+    }
+
+    static BulkableAction decode(JsonObject entry) {
+        String index = entry.get("index").getAsString(), type = entry.get("type").getAsString();
+        String id = entry.get("id").isJsonNull() ? null : entry.get("id").getAsString();
+        switch (entry.get("method").getAsString()) {
+            case "index":
+                return new Index.Builder(entry.get("source").getAsString()).index(index).type(type).id(id).build();
+            case "update":
+                return new Update.Builder(entry.get("source").getAsString()).index(index).type(type).id(id).build();
+            case "delete":
+                return new Delete.Builder(id).index(index).type(type).build();
+            default:
+                throw new IllegalArgumentException("unknown bulk method " + entry.get("method"));
+        }
+    }
+
+    /**
+     * Actions taken from the head of the buffer, removed once ElasticSearch has them.
+     */
+    private static class Batch {
+        final List<BulkableAction> actions = new ArrayList<>();
+        boolean refresh;
+        int count;
+        long end;
+
+        void add(String entry) {
+            count++;
+            try {
+                JsonObject json = new JsonParser().parse(entry).getAsJsonObject();
+                actions.add(decode(json));
+                refresh |= json.has("refresh");
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "ElasticSearch Integration: skipping unreadable buffered change " + entry, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Cypher procedures exposing the ElasticSearch extension running in this database.
+ */
+public class ElasticSearchProcedures {
+
+    @Context
+    public GraphDatabaseService db;
+
+    @Procedure("elasticsearch.search")
+    @Description("elasticsearch.search(index, query) - runs a query against ElasticSearch, served from the query cache when possible")
+    public Stream<JsonResult> search(@Name("index") String index, @Name("query") String query) throws IOException {
+        ElasticSearchExtension extension = extension();
+        ElasticSearchQueryCache queryCache = extension.getQueryCache();
+        if (queryCache == null) {
+            SearchResult result = extension.getClient().execute(new Search.Builder(query).addIndex(index).build());
+            if (!result.isSucceeded()) {
+                throw new IOException("ElasticSearch query on " + index + " failed: " + result.getErrorMessage());
+            }
+            return Stream.of(new JsonResult(result.getJsonString()));
+        }
+        return Stream.of(new JsonResult(queryCache.search(index, query)));
+    }
+
+    @Procedure("elasticsearch.queryCacheStats")
+    @Description("elasticsearch.queryCacheStats() - size and hit ratio of the ElasticSearch query cache")
+    public Stream<MapResult> queryCacheStats() {
+        ElasticSearchQueryCache queryCache = extension().getQueryCache();
+        if (queryCache == null) {
+            return Stream.empty();
+        }
+        return Stream.of(new MapResult(queryCache.stats()));
+    }
+
+    @Procedure("elasticsearch.outageBufferStats")
+    @Description("elasticsearch.outageBufferStats() - availability of ElasticSearch and fill level of the buffer holding changes while it is unreachable")
+    public Stream<MapResult> outageBufferStats() {
+        ElasticSearchOutageBuffer outageBuffer = extension().getOutageBuffer();
+        if (outageBuffer == null) {
+            return Stream.empty();
+        }
+        return Stream.of(new MapResult(outageBuffer.stats()));
+    }
+
+    @Procedure("elasticsearch.reconcile")
+    @Description("elasticsearch.reconcile(buckets, parallelism, docsPerSecond, resume) - compares bucket hashes of the graph and ElasticSearch and repairs the buckets that differ")
+    public Stream<ElasticSearchReconciler.Report> reconcile(@Name(value = "buckets", defaultValue = "4096") long buckets,
+                                                           @Name(value = "parallelism", defaultValue = "4") long parallelism,
+                                                           @Name(value = "docsPerSecond", defaultValue = "0") double docsPerSecond,
+                                                           @Name(value = "resume", defaultValue = "true") boolean resume) throws Exception {
+        return extension().newReconciler().reconcile((int) buckets, (int) parallelism, docsPerSecond, resume).stream();
+    }
+
+    @Procedure("elasticsearch.awaitIndexed")
+    @Description("elasticsearch.awaitIndexed(txId, timeoutMs) - waits until the changes of the transaction, by default the last committed one, are in ElasticSearch; indexed is false on timeout or when they failed to get there")
+    public Stream<IndexedResult> awaitIndexed(@Name(value = "txId", defaultValue = "-1") long txId,
+                                              @Name(value = "timeoutMs", defaultValue = "10000") long timeoutMs) throws InterruptedException {
+        ElasticSearchExtension extension = extension();
+        if (txId < 0) {
+            txId = extension.lastClosedTransactionId();
+        }
+        ElasticSearchIndexWatermark watermark = extension.getWatermark();
+        boolean indexed = watermark.await(txId, timeoutMs);
+        return Stream.of(new IndexedResult(txId, indexed, watermark.indexedUpTo()));
+    }
+
+    @Procedure("elasticsearch.reloadIndexSpec")
+    @Description("elasticsearch.reloadIndexSpec(indexSpec, backfill) - swaps in a new index spec without a restart, optionally filling the added indexes in the background")
+    public Stream<RouteResult> reloadIndexSpec(@Name("indexSpec") String indexSpec,
+                                               @Name(value = "backfill", defaultValue = "false") boolean backfill) throws ParseException {
+        List<RouteResult> results = new ArrayList<>();
+        for (Map.Entry<String, List<ElasticSearchRoutingTable.Route>> change : extension().reloadIndexSpec(indexSpec, backfill).entrySet()) {
+            for (ElasticSearchRoutingTable.Route route : change.getValue()) {
+                results.add(new RouteResult(change.getKey(), route.label, route.spec.getIndexName(),
+                        backfill && "added".equals(change.getKey())));
+            }
+        }
+        return results.stream();
+    }
+
+    private ElasticSearchExtension extension() {
+        ElasticSearchExtension extension = ElasticSearchExtension.getInstance(db);
+        if (extension == null) {
+            throw new IllegalStateException("ElasticSearch Integration is not enabled for this database");
+        }
+        return extension;
+    }
+
+    public static class JsonResult {
+        public final String json;
+
+        public JsonResult(String json) {
+            this.json = json;
+        }
+    }
+
+    public static class IndexedResult {
+        public final long txId;
+        public final boolean indexed;
+        public final long indexedUpTo;
+
+        public IndexedResult(long txId, boolean indexed, long indexedUpTo) {
+            this.txId = txId;
+            this.indexed = indexed;
+            this.indexedUpTo = indexedUpTo;
+        }
+    }
+
+    public static class RouteResult {
+        public final String change;
+        public final String label;
+        public final String index;
+        public final boolean backfill;
+
+        public RouteResult(String change, String label, String index, boolean backfill) {
+            this.change = change;
+            this.label = label;
+            this.index = index;
+            this.backfill = backfill;
+        }
+    }
+
+    public static class MapResult {
+        public final Map<String, Object> value;
+
+        public MapResult(Map<String, Object> value) {
+            this.value = value;
+        }
+    }
+}
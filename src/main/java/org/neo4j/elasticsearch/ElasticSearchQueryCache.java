@@ -0,0 +1,232 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Bounded LRU cache for ElasticSearch query results, keyed by index and normalized query.
+ *
+ * Entries of an index are dropped as soon as a committed transaction starts writing to it,
+ * and no result for that index is cached again until its bulk has completed and the index
+ * refresh interval has passed, so a cached result is never older than the committed graph.
+ */
+class ElasticSearchQueryCache {
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final JestClient client;
+    private final long maxWeight;
+    private final long refreshIntervalMillis;
+    private final LinkedHashMap<Key, String> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, IndexState> indexStates = new HashMap<>();
+    private final JsonParser parser = new JsonParser();
+    private long weight;
+    private long hits, misses, puts, evictions, invalidations;
+
+    public ElasticSearchQueryCache(JestClient client, long maxWeight, long refreshIntervalMillis) {
+        this.client = client;
+        this.maxWeight = maxWeight;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    public String search(String index, String query) throws IOException {
+        // wildcards and index lists can't be invalidated by index name, they always go to ElasticSearch
+        boolean cacheable = index.indexOf('*') == -1 && index.indexOf(',') == -1;
+        String normalized = normalize(query);
+        long generation = 0;
+        if (cacheable) {
+            synchronized (this) {
+                String cached = get(index, normalized);
+                if (cached != null) return cached;
+                generation = state(index).generation;
+            }
+        }
+        SearchResult result = client.execute(new Search.Builder(query).addIndex(index).build());
+        if (!result.isSucceeded()) {
+            throw new IOException("ElasticSearch query on " + index + " failed: " + result.getErrorMessage());
+        }
+        String json = result.getJsonString();
+        if (cacheable) {
+            put(index, normalized, json, generation);
+        }
+        return json;
+    }
+
+    synchronized String get(String index, String normalizedQuery) {
+        String value = entries.get(new Key(index, normalizedQuery));
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    synchronized long generation(String index) {
+        return state(index).generation;
+    }
+
+    synchronized boolean put(String index, String normalizedQuery, String value, long generation) {
+        IndexState state = state(index);
+        if (state.generation != generation || state.pendingWrites > 0 || System.currentTimeMillis() < state.dirtyUntil) {
+            return false;
+        }
+        long entryWeight = weigh(index, normalizedQuery, value);
+        if (entryWeight > maxWeight) {
+            return false;
+        }
+        Key key = new Key(index, normalizedQuery);
+        String previous = entries.put(key, value);
+        state.keys.add(key);
+        if (previous != null) {
+            weight -= weigh(index, normalizedQuery, previous);
+        }
+        weight += entryWeight;
+        puts++;
+        Iterator<Map.Entry<Key, String>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Map.Entry<Key, String> eldest = it.next();
+            weight -= weigh(eldest.getKey().index, eldest.getKey().query, eldest.getValue());
+            indexStates.get(eldest.getKey().index).keys.remove(eldest.getKey());
+            it.remove();
+            evictions++;
+        }
+        return true;
+    }
+
+    /**
+     * Called before a bulk touching the given indexes is sent.
+     */
+    public synchronized void beginWrite(Collection<String> indexNames) {
+        for (String indexName : indexNames) {
+            IndexState state = state(indexName);
+            state.pendingWrites++;
+            state.generation++;
+        }
+        invalidate(indexNames);
+    }
+
+    /**
+     * Called once the bulk started with {@link #beginWrite(Collection)} has completed or failed.
+     */
+    public synchronized void endWrite(Collection<String> indexNames) {
+        long dirtyUntil = System.currentTimeMillis() + refreshIntervalMillis;
+        for (String indexName : indexNames) {
+            IndexState state = state(indexName);
+            state.pendingWrites = Math.max(0, state.pendingWrites - 1);
+            state.generation++;
+            state.dirtyUntil = Math.max(state.dirtyUntil, dirtyUntil);
+        }
+        invalidate(indexNames);
+    }
+
+    /**
+     * Drops the entries of the indexes, found through each index's keys so other indexes aren't scanned.
+     */
+    private void invalidate(Collection<String> indexNames) {
+        for (String indexName : indexNames) {
+            IndexState state = indexStates.get(indexName);
+            if (state == null) continue;
+            for (Key key : state.keys) {
+                weight -= weigh(key.index, key.query, entries.remove(key));
+                invalidations++;
+            }
+            state.keys.clear();
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long requests = hits + misses;
+        stats.put("entries", (long) entries.size());
+        stats.put("weight", weight);
+        stats.put("maxWeight", maxWeight);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRatio", requests == 0 ? 0d : (double) hits / requests);
+        stats.put("puts", puts);
+        stats.put("evictions", evictions);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+
+    String normalize(String query) {
+        try {
+            return canonical(parser.parse(query)).toString();
+        } catch (JsonParseException e) {
+            return query.trim();
+        }
+    }
+
+    private JsonElement canonical(JsonElement element) {
+        if (element.isJsonObject()) {
+            TreeMap<String, JsonElement> fields = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                fields.put(entry.getKey(), canonical(entry.getValue()));
+            }
+            JsonObject sorted = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : fields.entrySet()) {
+                sorted.add(entry.getKey(), entry.getValue());
+            }
+            return sorted;
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = new JsonArray();
+            for (JsonElement e : element.getAsJsonArray()) {
+                array.add(canonical(e));
+            }
+            return array;
+        }
+        return element;
+    }
+
+    private IndexState state(String index) {
+        IndexState state = indexStates.get(index);
+        if (state == null) {
+            state = new IndexState();
+            indexStates.put(index, state);
+        }
+        return state;
+    }
+
+    private static long weigh(String index, String query, String value) {
+        return ENTRY_OVERHEAD + 2L * (index.length() + query.length() + value.length());
+    }
+
+    private static class IndexState {
+        long generation;
+        int pendingWrites;
+        long dirtyUntil;
+        final Set<Key> keys = new HashSet<>();
+    }
+
+    private static class Key {
+        final String index, query;
+
+        Key(String index, String query) {
+            this.index = index;
+            this.query = query;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * index.hashCode() + query.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return index.equals(other.index) && query.equals(other.query);
+        }
+    }
+}
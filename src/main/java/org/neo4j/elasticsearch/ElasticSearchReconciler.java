@@ -0,0 +1,784 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.action.GenericResultAbstractAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.*;
+import io.searchbox.params.Parameters;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.store.id.IdGeneratorFactory;
+import org.neo4j.kernel.impl.store.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Finds and repairs drift between the graph and the ElasticSearch indexes without a full reindex.
+ *
+ * Each index is reconciled once over all labels routed to it, as the documents carry no label to tell
+ * them apart. The documents are spread over a fixed number of buckets by their id.
+ * Both sides compute an order independent hash per bucket, the graph from a label scan and
+ * ElasticSearch from a (sliced) scroll with {@code _source} filtered to the declared properties.
+ * Only the documents of buckets whose hashes differ are compared one by one and re-indexed or deleted,
+ * in batches of buckets holding about {@link #BATCH_DOCUMENTS} documents so memory stays bounded
+ * however much drifted; each batch costs one more scroll and label scan.
+ * Both sides are read in parallel, ElasticSearch in scroll slices and the graph in node id ranges.
+ *
+ * The hash scans, per scroll slice and by last node id of each range's label scan, and the repaired buckets
+ * are written to a checkpoint file, so an interrupted run continues where it stopped.
+ */
+class ElasticSearchReconciler {
+    private final static Logger logger = Logger.getLogger(ElasticSearchReconciler.class.getName());
+    private static final String SCROLL_TIME = "5m";
+    private static final int SCROLL_SIZE = 1000;
+    private static final int BULK_SIZE = 1000;
+    private static final int CHECKPOINT_NODES = 100_000;
+    static final long BATCH_DOCUMENTS = 500_000;
+
+    private final GraphDatabaseService db;
+    private final JestClient client;
+    private final ElasticSearchEventHandler documents;
+    private final ElasticSearchIndexSettings indexSettings;
+    private final File checkpointFile;
+    private final Gson gson = new Gson();
+
+    /**
+     * @param documents sends the repairs, so cached query results of the repaired indexes are invalidated
+     */
+    public ElasticSearchReconciler(GraphDatabaseService db, JestClient client, ElasticSearchEventHandler documents,
+                                   ElasticSearchIndexSettings indexSettings, File checkpointFile) {
+        this.db = db;
+        this.client = client;
+        this.documents = documents;
+        this.indexSettings = indexSettings;
+        this.checkpointFile = checkpointFile;
+    }
+
+    public List<Report> reconcile(int buckets, int parallelism, double docsPerSecond, boolean resume) throws Exception {
+        Checkpoint checkpoint = resume ? Checkpoint.load(checkpointFile) : new Checkpoint();
+        RateLimiter rateLimiter = new RateLimiter(docsPerSecond);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Report> reports = new ArrayList<>();
+            Map<String, Map<String, ElasticSearchIndexSpec>> indexes = new LinkedHashMap<>();
+            for (Map.Entry<String, List<ElasticSearchIndexSpec>> entry : indexSettings.getIndexSpec().entrySet()) {
+                for (ElasticSearchIndexSpec spec : entry.getValue()) {
+                    indexes.computeIfAbsent(spec.getIndexName(), k -> new LinkedHashMap<>()).put(entry.getKey(), spec);
+                }
+            }
+            for (Map.Entry<String, Map<String, ElasticSearchIndexSpec>> index : indexes.entrySet()) {
+                Target target = new Target(index.getKey(), index.getValue(), buckets);
+                reports.add(reconcile(target, checkpoint, executor, parallelism, rateLimiter));
+            }
+            if (checkpointFile.exists() && !checkpointFile.delete()) {
+                logger.warning("Could not remove reconcile checkpoint " + checkpointFile);
+            }
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Report reconcile(Target target, Checkpoint checkpoint, ExecutorService executor, int parallelism, RateLimiter rateLimiter) throws Exception {
+        Report report = new Report(target.labelNames(), target.index);
+        if (!checkpoint.hasHashes(target)) {
+            hashes(target, checkpoint, executor, parallelism, rateLimiter);
+        }
+        Hashes graph = checkpoint.graphHashes(target), indexed = checkpoint.indexHashes(target);
+        report.documents = graph.total();
+        report.indexedDocuments = indexed.total();
+
+        BitSet mismatches = new BitSet(target.buckets);
+        for (int bucket = 0; bucket < target.buckets; bucket++) {
+            if (graph.hashes[bucket] != indexed.hashes[bucket] || graph.counts[bucket] != indexed.counts[bucket]) {
+                mismatches.set(bucket);
+            }
+        }
+        report.mismatchedBuckets = mismatches.cardinality();
+        mismatches.andNot(checkpoint.repaired(target));
+
+        for (BitSet batch : batches(mismatches, graph, indexed, BATCH_DOCUMENTS)) {
+            Map<String, Map<String, Long>> indexedDocs = new HashMap<>();
+            List<Future<Map<String, Map<String, Long>>>> slices = new ArrayList<>();
+            for (int slice = 0; slice < parallelism; slice++) {
+                final int id = slice;
+                slices.add(executor.submit(() -> indexDocuments(target, id, parallelism, batch, rateLimiter)));
+            }
+            for (Future<Map<String, Map<String, Long>>> slice : slices) {
+                indexedDocs.putAll(slice.get());
+            }
+            // scanned after the scroll, so a document without a node here had none when it was read
+            long nodesPerRange = nodesPerRange(parallelism);
+            List<Future<Map<String, Doc>>> ranges = new ArrayList<>();
+            for (int range = 0; range < parallelism; range++) {
+                final int id = range;
+                ranges.add(executor.submit(() -> graphDocuments(target, batch, from(id, nodesPerRange), to(id, parallelism, nodesPerRange))));
+            }
+            Map<String, Doc> graphDocs = new HashMap<>();
+            for (Future<Map<String, Doc>> range : ranges) {
+                graphDocs.putAll(range.get());
+            }
+            repair(target, batch, graphDocs, indexedDocs, checkpoint, rateLimiter, report);
+        }
+        return report;
+    }
+
+    /**
+     * Groups the buckets into batches of at most about the given number of documents, on the larger side of each bucket.
+     */
+    static List<BitSet> batches(BitSet buckets, Hashes graph, Hashes indexed, long maxDocuments) {
+        List<BitSet> batches = new ArrayList<>();
+        BitSet batch = new BitSet();
+        long documents = 0;
+        for (int bucket = buckets.nextSetBit(0); bucket >= 0; bucket = buckets.nextSetBit(bucket + 1)) {
+            long bucketDocuments = Math.max(graph.counts[bucket], indexed.counts[bucket]);
+            if (!batch.isEmpty() && documents + bucketDocuments > maxDocuments) {
+                batches.add(batch);
+                batch = new BitSet();
+                documents = 0;
+            }
+            batch.set(bucket);
+            documents += bucketDocuments;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Bucket hashes of both sides, continuing the scans of an interrupted run from its checkpoint.
+     */
+    private void hashes(Target target, Checkpoint checkpoint, ExecutorService executor, int slices, RateLimiter rateLimiter) throws Exception {
+        long nodesPerRange = checkpoint.startHashes(target, slices, nodesPerRange(slices));
+        List<Future<Hashes>> rangeHashes = new ArrayList<>();
+        for (int range = 0; range < slices; range++) {
+            final int id = range;
+            rangeHashes.add(executor.submit(() -> graphHashes(target, checkpoint, id, from(id, nodesPerRange), to(id, slices, nodesPerRange))));
+        }
+        List<Future<Hashes>> sliceHashes = new ArrayList<>();
+        for (int slice = 0; slice < slices; slice++) {
+            final int id = slice;
+            Hashes done = checkpoint.sliceHashes(target, slice);
+            sliceHashes.add(done != null ? CompletableFuture.completedFuture(done) : executor.submit(() -> {
+                Hashes hashes = indexHashes(target, id, slices, rateLimiter);
+                checkpoint.putSliceHashes(target, id, hashes);
+                checkpoint.save(checkpointFile);
+                return hashes;
+            }));
+        }
+        Hashes graph = new Hashes(target.buckets), indexed = new Hashes(target.buckets);
+        for (Future<Hashes> range : rangeHashes) {
+            graph.add(range.get());
+        }
+        for (Future<Hashes> slice : sliceHashes) {
+            indexed.add(slice.get());
+        }
+        checkpoint.putHashes(target, graph, indexed);
+        checkpoint.save(checkpointFile);
+    }
+
+    /**
+     * Size of the node id ranges the graph is scanned in, one per worker.
+     */
+    private long nodesPerRange(int ranges) {
+        long highId = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(IdGeneratorFactory.class).get(IdType.NODE).getHighId();
+        return Math.max(1, (highId + ranges - 1) / ranges);
+    }
+
+    private static long from(int range, long nodesPerRange) {
+        return range * nodesPerRange;
+    }
+
+    /**
+     * The last range is open, so nodes created since the ranges were drawn are still scanned.
+     */
+    private static long to(int range, int ranges, long nodesPerRange) {
+        return range == ranges - 1 ? Long.MAX_VALUE : (range + 1) * nodesPerRange;
+    }
+
+    /**
+     * Label scans of one node id range in node id order, checkpointed every {@link #CHECKPOINT_NODES} nodes
+     * with the last node id seen, and once more when the range is done.
+     */
+    private Hashes graphHashes(Target target, Checkpoint checkpoint, int range, long from, long to) throws IOException {
+        Hashes hashes = checkpoint.partialGraphHashes(target, range);
+        long[] position = checkpoint.graphPosition(target, range);
+        List<String> labels = new ArrayList<>(target.specs.keySet());
+        long scanned = 0;
+        try (Transaction tx = db.beginTx()) {
+            for (int l = (int) position[0]; l < labels.size(); l++) {
+                long after = l == position[0] ? Math.max(position[1], from - 1) : from - 1;
+                try (ResourceIterator<Node> nodes = db.findNodes(Label.label(labels.get(l)))) {
+                    while (nodes.hasNext()) {
+                        Node node = nodes.next();
+                        if (node.getId() >= to) break;
+                        if (node.getId() <= after || !target.scannedWith(node, labels.get(l))) continue;
+                        Map<String, Object> json = ElasticSearchEventHandler.nodeToJson(node);
+                        String id = ElasticSearchEventHandler.id(node, json);
+                        hashes.add(target.bucket(id), docHash(id, target.located(node, json, gson)));
+                        if (++scanned % CHECKPOINT_NODES == 0) {
+                            checkpoint.putGraphProgress(target, range, hashes, l, node.getId());
+                            checkpoint.save(checkpointFile);
+                        }
+                    }
+                }
+            }
+            tx.success();
+        }
+        checkpoint.putGraphProgress(target, range, hashes, labels.size(), -1);
+        checkpoint.save(checkpointFile);
+        return hashes;
+    }
+
+    private Map<String, Doc> graphDocuments(Target target, BitSet buckets, long from, long to) {
+        Map<String, Doc> docs = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            for (String label : target.specs.keySet()) {
+                try (ResourceIterator<Node> nodes = db.findNodes(Label.label(label))) {
+                    while (nodes.hasNext()) {
+                        Node node = nodes.next();
+                        if (node.getId() >= to) break;
+                        if (node.getId() < from) continue;
+                        // only the id property is read for nodes outside the batch
+                        String id = ElasticSearchEventHandler.id(node);
+                        if (!buckets.get(target.bucket(id)) || !target.scannedWith(node, label)) continue;
+                        Map<String, Object> json = ElasticSearchEventHandler.nodeToJson(node);
+                        docs.put(id, new Doc(node.getId(), docHash(id, target.located(node, json, gson))));
+                    }
+                }
+            }
+            tx.success();
+        }
+        return docs;
+    }
+
+    private Hashes indexHashes(Target target, int slice, int slices, RateLimiter rateLimiter) throws IOException {
+        Hashes hashes = new Hashes(target.buckets);
+        scroll(target, slice, slices, rateLimiter, (index, id, source) -> hashes.add(target.bucket(id), docHash(id, target.located(index, source))));
+        return hashes;
+    }
+
+    /**
+     * Document hashes by id and physical index, a document can have stale copies in other time based indexes.
+     */
+    private Map<String, Map<String, Long>> indexDocuments(Target target, int slice, int slices, BitSet buckets, RateLimiter rateLimiter) throws IOException {
+        Map<String, Map<String, Long>> docs = new HashMap<>();
+        scroll(target, slice, slices, rateLimiter, (index, id, source) -> {
+            if (buckets.get(target.bucket(id))) {
+                docs.computeIfAbsent(id, k -> new HashMap<>()).put(index, docHash(id, target.located(index, source)));
+            }
+        });
+        return docs;
+    }
+
+    private interface HitVisitor {
+        void visit(String index, String id, JsonObject source);
+    }
+
+    private void scroll(Target target, int slice, int slices, RateLimiter rateLimiter, HitVisitor visitor) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("size", SCROLL_SIZE);
+        body.add("_source", gson.toJsonTree(target.properties));
+        body.add("query", gson.toJsonTree(Collections.singletonMap("match_all", Collections.emptyMap())));
+        if (slices > 1) {
+            JsonObject sliceSpec = new JsonObject();
+            sliceSpec.addProperty("id", slice);
+            sliceSpec.addProperty("max", slices);
+            body.add("slice", sliceSpec);
+        } else if (slice > 0) {
+            return;
+        }
+        Search.Builder search = new Search.Builder(body.toString())
+                .addIndex(target.index)
+                .setParameter(Parameters.SCROLL, SCROLL_TIME);
+        if (target.isTimeBased()) {
+            // documents without a date are in the plain index, which may not exist
+            search.addIndex(target.index + "-*").setParameter("ignore_unavailable", "true");
+        }
+        String scrollId = null;
+        try {
+            JestResult result = client.execute(search.build());
+            while (true) {
+                if (result.getJsonObject() != null && result.getJsonObject().has("_scroll_id")) {
+                    scrollId = result.getJsonObject().get("_scroll_id").getAsString();
+                }
+                if (!result.isSucceeded()) {
+                    throw new IOException("Scrolling " + target.index + " failed: " + result.getErrorMessage());
+                }
+                JsonArray hits = result.getJsonObject().getAsJsonObject("hits").getAsJsonArray("hits");
+                if (hits.size() == 0) {
+                    return;
+                }
+                rateLimiter.acquire(hits.size());
+                for (JsonElement hit : hits) {
+                    JsonObject source = hit.getAsJsonObject().getAsJsonObject("_source");
+                    visitor.visit(hit.getAsJsonObject().get("_index").getAsString(), hit.getAsJsonObject().get("_id").getAsString(),
+                            source == null ? new JsonObject() : source);
+                }
+                result = client.execute(new SearchScroll.Builder(scrollId, SCROLL_TIME).build());
+            }
+        } finally {
+            if (scrollId != null) {
+                clearScroll(scrollId);
+            }
+        }
+    }
+
+    /**
+     * Frees the search context right away instead of holding it on every shard until {@link #SCROLL_TIME} passes.
+     */
+    private void clearScroll(String scrollId) {
+        try {
+            JestResult result = client.execute(new ClearScroll(scrollId));
+            if (!result.isSucceeded()) {
+                logger.warning("ElasticSearch Integration: Could not clear scroll: " + result.getErrorMessage());
+            }
+        } catch (IOException e) {
+            logger.warning("ElasticSearch Integration: Could not clear scroll: " + e.getMessage());
+        }
+    }
+
+    /**
+     * DELETE _search/scroll, which this Jest version has no action for.
+     */
+    static class ClearScroll extends GenericResultAbstractAction {
+        ClearScroll(String scrollId) {
+            JsonArray ids = new JsonArray();
+            ids.add(new JsonPrimitive(scrollId));
+            JsonObject body = new JsonObject();
+            body.add("scroll_id", ids);
+            payload = body.toString();
+            setURI("_search/scroll");
+        }
+
+        @Override
+        public String getRestMethodName() {
+            return "DELETE";
+        }
+    }
+
+    private void repair(Target target, BitSet mismatches, Map<String, Doc> graphDocs, Map<String, Map<String, Long>> indexedDocs,
+                        Checkpoint checkpoint, RateLimiter rateLimiter, Report report) throws IOException {
+        Map<Integer, List<BulkableAction>> actionsPerBucket = new TreeMap<>();
+        try (Transaction tx = db.beginTx()) {
+            for (Map.Entry<String, Doc> entry : graphDocs.entrySet()) {
+                String id = entry.getKey();
+                Map<String, Long> copies = indexedDocs.getOrDefault(id, Collections.emptyMap());
+                if (copies.size() == 1 && copies.containsValue(entry.getValue().hash)) continue;
+                Node node;
+                try {
+                    node = db.getNodeById(entry.getValue().nodeId);
+                } catch (NotFoundException e) {
+                    continue; // deleted since the scan, the event handler takes care of it
+                }
+                Map<String, Object> json = ElasticSearchEventHandler.nodeToJson(node);
+                ElasticSearchIndexSpec spec = target.spec(node);
+                if (spec == null) continue; // relabeled since the scan
+                String index = spec.getIndexName(json);
+                bucketActions(actionsPerBucket, target.bucket(id)).add(new Index.Builder(spec.document(json))
+                        .index(index).type(target.type).id(id).build());
+                report.indexed++;
+                for (String copy : copies.keySet()) {
+                    if (copy.equals(index) || !target.isTimeBased()) continue;
+                    bucketActions(actionsPerBucket, target.bucket(id)).add(new Delete.Builder(id)
+                            .index(copy).type(target.type).build());
+                    report.deleted++;
+                }
+            }
+            for (Map.Entry<String, Map<String, Long>> entry : indexedDocs.entrySet()) {
+                String id = entry.getKey();
+                if (graphDocs.containsKey(id)) continue;
+                for (String copy : entry.getValue().keySet()) {
+                    bucketActions(actionsPerBucket, target.bucket(id)).add(new Delete.Builder(id)
+                            .index(copy).type(target.type).build());
+                    report.deleted++;
+                }
+            }
+            tx.success();
+        }
+
+        List<BulkableAction> bulk = new ArrayList<>(BULK_SIZE);
+        List<Integer> bulkBuckets = new ArrayList<>();
+        for (int bucket = mismatches.nextSetBit(0); bucket >= 0; bucket = mismatches.nextSetBit(bucket + 1)) {
+            List<BulkableAction> actions = actionsPerBucket.get(bucket);
+            if (actions != null) bulk.addAll(actions);
+            bulkBuckets.add(bucket);
+            if (bulk.size() >= BULK_SIZE) {
+                send(bulk, rateLimiter);
+                checkpoint.markRepaired(target, bulkBuckets);
+                checkpoint.save(checkpointFile);
+                bulk.clear();
+                bulkBuckets.clear();
+            }
+        }
+        send(bulk, rateLimiter);
+        checkpoint.markRepaired(target, bulkBuckets);
+        checkpoint.save(checkpointFile);
+        logger.info("ElasticSearch reconcile of " + target.index + ": " + report.indexed + " indexed, " + report.deleted + " deleted");
+    }
+
+    private List<BulkableAction> bucketActions(Map<Integer, List<BulkableAction>> actionsPerBucket, int bucket) {
+        List<BulkableAction> actions = actionsPerBucket.get(bucket);
+        if (actions == null) {
+            actions = new ArrayList<>();
+            actionsPerBucket.put(bucket, actions);
+        }
+        return actions;
+    }
+
+    private void send(List<BulkableAction> actions, RateLimiter rateLimiter) throws IOException {
+        if (actions.isEmpty()) return;
+        rateLimiter.acquire(actions.size());
+        JestResult result = documents.execute(actions, false);
+        if (!result.isSucceeded()) {
+            throw new IOException("ElasticSearch repair bulk failed: " + result.getErrorMessage());
+        }
+    }
+
+    static long docHash(String id, String source) {
+        long hash = fnv(0xcbf29ce484222325L, id);
+        hash = fnv(hash * 0x100000001b3L, source);
+        // finalizer, so the per bucket sums don't cancel out for similar documents
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long fnv(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * One physical index, or index family for time based specs, with the labels routed to it.
+     */
+    static class Target {
+        final String index, type;
+        final Map<String, ElasticSearchIndexSpec> specs;
+        final List<String> properties;
+        final int buckets;
+
+        /**
+         * @param specs spec per label name
+         */
+        Target(String index, Map<String, ElasticSearchIndexSpec> specs, int buckets) {
+            this.index = index;
+            this.type = index + "Sync";
+            this.specs = specs;
+            Set<String> properties = new TreeSet<>();
+            for (ElasticSearchIndexSpec spec : specs.values()) {
+                properties.addAll(spec.getProperties());
+            }
+            this.properties = new ArrayList<>(properties);
+            this.buckets = buckets;
+        }
+
+        /**
+         * The spec the node's document is written with: like the event handler, the last of its labels routed here wins.
+         */
+        ElasticSearchIndexSpec spec(Node node) {
+            ElasticSearchIndexSpec spec = null;
+            for (Label label : node.getLabels()) {
+                ElasticSearchIndexSpec labelSpec = specs.get(label.name());
+                if (labelSpec != null) spec = labelSpec;
+            }
+            return spec;
+        }
+
+        /**
+         * A node with several labels routed here is only counted in the scan of the first of them.
+         */
+        boolean scannedWith(Node node, String scanned) {
+            for (String label : specs.keySet()) {
+                if (node.hasLabel(Label.label(label))) return label.equals(scanned);
+            }
+            return false;
+        }
+
+        boolean isTimeBased() {
+            for (ElasticSearchIndexSpec spec : specs.values()) {
+                if (spec.isTimeBased()) return true;
+            }
+            return false;
+        }
+
+        int bucket(String id) {
+            return (int) ((fnv(0xcbf29ce484222325L, id) & Long.MAX_VALUE) % buckets);
+        }
+
+        String project(Map<String, Object> json, Gson gson) {
+            JsonObject projected = new JsonObject();
+            for (String property : properties) {
+                Object value = json.get(property);
+                if (value != null) projected.add(property, gson.toJsonTree(value));
+            }
+            return projected.toString();
+        }
+
+        String project(JsonObject source) {
+            JsonObject projected = new JsonObject();
+            for (String property : properties) {
+                JsonElement value = source.get(property);
+                if (value != null && !value.isJsonNull()) projected.add(property, value);
+            }
+            return projected.toString();
+        }
+
+        /**
+         * The document the graph expects, with its physical index for time based indexes so documents
+         * in the wrong index show up as drift.
+         */
+        String located(Node node, Map<String, Object> json, Gson gson) {
+            ElasticSearchIndexSpec spec = spec(node);
+            String projected = project(spec.document(json), gson);
+            return isTimeBased() ? spec.getIndexName(json) + '\u0000' + projected : projected;
+        }
+
+        String located(String physicalIndex, JsonObject source) {
+            String projected = project(source);
+            return isTimeBased() ? physicalIndex + '\u0000' + projected : projected;
+        }
+
+        String labelNames() {
+            StringBuilder names = new StringBuilder();
+            for (String label : specs.keySet()) {
+                if (names.length() > 0) names.append(',');
+                names.append(label);
+            }
+            return names.toString();
+        }
+
+        String key() {
+            return index;
+        }
+    }
+
+    static class Hashes {
+        final long[] hashes;
+        final long[] counts;
+
+        Hashes(int buckets) {
+            this.hashes = new long[buckets];
+            this.counts = new long[buckets];
+        }
+
+        void add(int bucket, long hash) {
+            hashes[bucket] += hash;
+            counts[bucket]++;
+        }
+
+        void add(Hashes other) {
+            for (int bucket = 0; bucket < hashes.length; bucket++) {
+                hashes[bucket] += other.hashes[bucket];
+                counts[bucket] += other.counts[bucket];
+            }
+        }
+
+        long total() {
+            long total = 0;
+            for (long count : counts) total += count;
+            return total;
+        }
+    }
+
+    private static class Doc {
+        final long nodeId, hash;
+
+        Doc(long nodeId, long hash) {
+            this.nodeId = nodeId;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Reconcile progress, stored as a properties file next to the store.
+     */
+    static class Checkpoint {
+        private final Properties properties = new Properties();
+
+        static Checkpoint load(File file) throws IOException {
+            Checkpoint checkpoint = new Checkpoint();
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    checkpoint.properties.load(in);
+                }
+            }
+            return checkpoint;
+        }
+
+        synchronized void save(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                properties.store(out, "neo4j-elasticsearch reconcile checkpoint");
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not write reconcile checkpoint " + file);
+            }
+        }
+
+        synchronized boolean hasHashes(Target target) {
+            return String.valueOf(target.buckets).equals(properties.getProperty(target.key() + ".buckets"));
+        }
+
+        synchronized void putHashes(Target target, Hashes graph, Hashes indexed) {
+            properties.setProperty(target.key() + ".buckets", String.valueOf(target.buckets));
+            properties.setProperty(target.key() + ".graph", encode(graph));
+            properties.setProperty(target.key() + ".index", encode(indexed));
+            properties.remove(target.key() + ".repaired");
+            removePartial(target);
+        }
+
+        /**
+         * Keeps the progress of interrupted hash scans made with the same buckets and slices, drops it otherwise.
+         *
+         * @return the size of the node id ranges to scan, that of the interrupted scan when it is continued
+         */
+        synchronized long startHashes(Target target, int slices, long nodesPerRange) {
+            String scan = target.buckets + ":" + slices;
+            String ranges = properties.getProperty(target.key() + ".partial.ranges");
+            if (scan.equals(properties.getProperty(target.key() + ".partial.scan")) && ranges != null) {
+                return Long.parseLong(ranges);
+            }
+            removePartial(target);
+            properties.setProperty(target.key() + ".partial.scan", scan);
+            properties.setProperty(target.key() + ".partial.ranges", String.valueOf(nodesPerRange));
+            return nodesPerRange;
+        }
+
+        private void removePartial(Target target) {
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(target.key() + ".partial.")) properties.remove(name);
+            }
+        }
+
+        synchronized Hashes sliceHashes(Target target, int slice) {
+            String value = properties.getProperty(target.key() + ".partial.slice." + slice);
+            return value == null ? null : decode(value, target.buckets);
+        }
+
+        synchronized void putSliceHashes(Target target, int slice, Hashes hashes) {
+            properties.setProperty(target.key() + ".partial.slice." + slice, encode(hashes));
+        }
+
+        synchronized Hashes partialGraphHashes(Target target, int range) {
+            String value = properties.getProperty(target.key() + ".partial.graph." + range);
+            return value == null ? new Hashes(target.buckets) : decode(value, target.buckets);
+        }
+
+        /**
+         * Index of the label being scanned in the node id range and the last node id hashed, -1 before the first.
+         */
+        synchronized long[] graphPosition(Target target, int range) {
+            String value = properties.getProperty(target.key() + ".partial.graph." + range + ".position", "0:-1");
+            String[] position = value.split(":");
+            return new long[]{Long.parseLong(position[0]), Long.parseLong(position[1])};
+        }
+
+        synchronized void putGraphProgress(Target target, int range, Hashes hashes, int label, long lastNodeId) {
+            properties.setProperty(target.key() + ".partial.graph." + range, encode(hashes));
+            properties.setProperty(target.key() + ".partial.graph." + range + ".position", label + ":" + lastNodeId);
+        }
+
+        synchronized Hashes graphHashes(Target target) {
+            return decode(properties.getProperty(target.key() + ".graph"), target.buckets);
+        }
+
+        synchronized Hashes indexHashes(Target target) {
+            return decode(properties.getProperty(target.key() + ".index"), target.buckets);
+        }
+
+        synchronized BitSet repaired(Target target) {
+            BitSet repaired = new BitSet(target.buckets);
+            String value = properties.getProperty(target.key() + ".repaired", "");
+            for (String bucket : value.split(",")) {
+                if (!bucket.isEmpty()) repaired.set(Integer.parseInt(bucket));
+            }
+            return repaired;
+        }
+
+        synchronized void markRepaired(Target target, Collection<Integer> buckets) {
+            if (buckets.isEmpty()) return;
+            StringBuilder value = new StringBuilder(properties.getProperty(target.key() + ".repaired", ""));
+            for (Integer bucket : buckets) {
+                if (value.length() > 0) value.append(',');
+                value.append(bucket);
+            }
+            properties.setProperty(target.key() + ".repaired", value.toString());
+        }
+
+        private static String encode(Hashes hashes) {
+            StringBuilder sb = new StringBuilder();
+            for (int bucket = 0; bucket < hashes.hashes.length; bucket++) {
+                if (bucket > 0) sb.append(',');
+                sb.append(Long.toHexString(hashes.hashes[bucket])).append(':').append(hashes.counts[bucket]);
+            }
+            return sb.toString();
+        }
+
+        private static Hashes decode(String value, int buckets) {
+            Hashes hashes = new Hashes(buckets);
+            String[] entries = value.split(",");
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                String[] entry = entries[bucket].split(":");
+                hashes.hashes[bucket] = Long.parseUnsignedLong(entry[0], 16);
+                hashes.counts[bucket] = Long.parseLong(entry[1]);
+            }
+            return hashes;
+        }
+    }
+
+    /**
+     * Spreads document reads and writes so they stay below the requested rate, shared by all workers.
+     */
+    static class RateLimiter {
+        private final double docsPerSecond;
+        private long nextFreeNanos = System.nanoTime();
+
+        RateLimiter(double docsPerSecond) {
+            this.docsPerSecond = docsPerSecond;
+        }
+
+        void acquire(int docs) {
+            if (docsPerSecond <= 0) return;
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                nextFreeNanos = Math.max(nextFreeNanos, now) + (long) (docs * 1_000_000_000d / docsPerSecond);
+                waitNanos = nextFreeNanos - now - (long) (docs * 1_000_000_000d / docsPerSecond);
+            }
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+        }
+    }
+
+    public static class Report {
+        public final String label, index;
+        public long documents, indexedDocuments, mismatchedBuckets, indexed, deleted;
+
+        Report(String label, String index) {
+            this.label = label;
+            this.index = index;
+        }
+    }
+}
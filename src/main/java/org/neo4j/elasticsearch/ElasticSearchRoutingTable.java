@@ -0,0 +1,107 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.Label;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The index spec compiled once into routes per label name: index, type, declared properties and id
+ * property. A table never changes, reloading the spec swaps in a new one.
+ *
+ * Labels without a spec keep going to an index of their own name with all properties; their routes
+ * are compiled on first use.
+ */
+class ElasticSearchRoutingTable {
+    static final String ID_PROPERTY = "sketchID";
+
+    private final Map<String, List<ElasticSearchIndexSpec>> indexSpec;
+    private final Map<String, List<Route>> routes = new HashMap<>();
+    private final Set<String> routingProperties = new HashSet<>();
+    private final ConcurrentMap<String, List<Route>> unspecified = new ConcurrentHashMap<>();
+
+    ElasticSearchRoutingTable(Map<String, List<ElasticSearchIndexSpec>> indexSpec) {
+        this.indexSpec = Collections.unmodifiableMap(new LinkedHashMap<>(indexSpec));
+        for (Map.Entry<String, List<ElasticSearchIndexSpec>> entry : indexSpec.entrySet()) {
+            List<Route> labelRoutes = new ArrayList<>();
+            for (ElasticSearchIndexSpec spec : entry.getValue()) {
+                labelRoutes.add(new Route(entry.getKey(), spec));
+                if (spec.isTimeBased()) routingProperties.add(spec.getDateProperty());
+            }
+            routes.put(entry.getKey(), Collections.unmodifiableList(labelRoutes));
+        }
+    }
+
+    List<Route> routes(Label label) {
+        List<Route> labelRoutes = routes.get(label.name());
+        if (labelRoutes != null) {
+            return labelRoutes;
+        }
+        return unspecified.computeIfAbsent(label.name(), name ->
+                Collections.singletonList(new Route(name, new ElasticSearchIndexSpec(name.toLowerCase(), null))));
+    }
+
+    Map<String, List<ElasticSearchIndexSpec>> getIndexSpec() {
+        return indexSpec;
+    }
+
+    Set<String> getLabels() {
+        return indexSpec.keySet();
+    }
+
+    /**
+     * Date properties of the time based indexes, their old values locate the documents to delete.
+     */
+    Set<String> getRoutingProperties() {
+        return routingProperties;
+    }
+
+    /**
+     * Routes of this table that the previous one didn't have, their indexes need a backfill.
+     */
+    List<Route> added(ElasticSearchRoutingTable previous) {
+        List<Route> added = new ArrayList<>();
+        for (List<Route> labelRoutes : routes.values()) {
+            for (Route route : labelRoutes) {
+                List<Route> previousRoutes = previous.routes.get(route.label);
+                if (previousRoutes == null || !previousRoutes.contains(route)) added.add(route);
+            }
+        }
+        return added;
+    }
+
+    static class Route {
+        final String label;
+        final ElasticSearchIndexSpec spec;
+        final String type;
+
+        Route(String label, ElasticSearchIndexSpec spec) {
+            this.label = label;
+            this.spec = spec;
+            this.type = spec.getIndexName() + "Sync";
+        }
+
+        String indexName(Map<String, Object> properties) {
+            return spec.getIndexName(properties);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Route)) return false;
+            Route other = (Route) o;
+            return label.equals(other.label) && spec.equals(other.spec);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * label.hashCode() + spec.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return label + " -> " + spec;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.kernel.impl.core.LabelTokenHolder;
+import org.neo4j.kernel.impl.core.PropertyKeyTokenHolder;
+import org.neo4j.kernel.impl.core.TokenHolder;
+import org.neo4j.kernel.impl.store.AbstractDynamicStore;
+import org.neo4j.kernel.impl.store.NodeLabelsField;
+import org.neo4j.kernel.impl.store.PropertyStore;
+import org.neo4j.kernel.impl.store.PropertyType;
+import org.neo4j.kernel.impl.store.record.NodeRecord;
+import org.neo4j.kernel.impl.store.record.PropertyBlock;
+import org.neo4j.kernel.impl.store.record.PropertyRecord;
+import org.neo4j.kernel.impl.transaction.CommittedTransactionRepresentation;
+import org.neo4j.kernel.impl.transaction.command.Command;
+import org.neo4j.kernel.impl.transaction.log.LogicalTransactionStore;
+import org.neo4j.kernel.impl.transaction.log.NoSuchTransactionException;
+import org.neo4j.kernel.impl.transaction.log.TransactionCursor;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.storageengine.api.Token;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Change source that follows the logical transaction log instead of hooking into every commit.
+ *
+ * Node and property commands of each committed transaction are decoded into the change records
+ * of {@link ElasticSearchChangeCapture}, whose workers turn them into bulks. The id of the last
+ * transaction whose changes have all been sent is stored next to the store, so after a restart
+ * or crash tailing continues from there and nothing committed in between is missed.
+ */
+class ElasticSearchTransactionLogTailer {
+    private final static Logger logger = Logger.getLogger(ElasticSearchTransactionLogTailer.class.getName());
+    private static final long POLL_MILLIS = 100;
+    private static final long SAVE_MILLIS = 1000;
+
+    private final GraphDatabaseAPI db;
+    private final ElasticSearchChangeCapture capture;
+    private final Supplier<ElasticSearchRoutingTable> routing;
+    private final File positionFile;
+    private final Deque<long[]> unsent = new ArrayDeque<>();
+    private final Thread thread;
+    private ElasticSearchIndexWatermark watermark;
+    private volatile boolean running;
+    private volatile long position = -1;
+    private long savedPosition = -1;
+
+    public ElasticSearchTransactionLogTailer(GraphDatabaseService db, ElasticSearchChangeCapture capture,
+                                             Supplier<ElasticSearchRoutingTable> routing, File positionFile) {
+        this.db = (GraphDatabaseAPI) db;
+        this.capture = capture;
+        this.routing = routing;
+        this.positionFile = positionFile;
+        this.thread = new Thread(this::run, "neo4j-elasticsearch-txlog");
+        this.thread.setDaemon(true);
+    }
+
+    public void setWatermark(ElasticSearchIndexWatermark watermark) {
+        this.watermark = watermark;
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops after the current poll; the thread is not interrupted as it may be reading log files.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    private void run() {
+        while (running && !db.isAvailable(POLL_MILLIS)) {
+            // the transaction log is only readable once the database is up
+        }
+        long lastSave = System.currentTimeMillis();
+        try {
+            DependencyResolver resolver = db.getDependencyResolver();
+            LogicalTransactionStore transactionStore = resolver.resolveDependency(LogicalTransactionStore.class);
+            TransactionIdStore transactionIdStore = resolver.resolveDependency(TransactionIdStore.class);
+            Tokens tokens = new Tokens(resolver.resolveDependency(LabelTokenHolder.class), resolver.resolveDependency(PropertyKeyTokenHolder.class));
+            position = savedPosition = readPosition(transactionIdStore);
+            while (running) {
+                long lastClosed = transactionIdStore.getLastClosedTransactionId();
+                if (lastClosed > position && db.isAvailable(0)) {
+                    position = tail(transactionStore, tokens, position, lastClosed);
+                }
+                if (System.currentTimeMillis() - lastSave >= SAVE_MILLIS) {
+                    savePosition();
+                    lastSave = System.currentTimeMillis();
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "ElasticSearch Integration: transaction log tailing stopped at " + position, e);
+        }
+        savePosition();
+    }
+
+    private long tail(LogicalTransactionStore transactionStore, Tokens tokens, long from, long to) throws IOException {
+        long txId = from;
+        try (TransactionCursor cursor = transactionStore.getTransactions(from + 1)) {
+            while (txId < to && cursor.next()) {
+                CommittedTransactionRepresentation tx = cursor.get();
+                txId = tx.getCommitEntry().getTxId();
+                long[] before = capture.published();
+                capture.publish(decode(tx, tokens));
+                long[] published = capture.published();
+                unsent.addLast(marker(txId, published));
+                if (watermark != null) {
+                    watermark.committed(txId, capture.indexing(before, published));
+                }
+            }
+        } catch (NoSuchTransactionException e) {
+            logger.severe("ElasticSearch Integration: transactions after " + from + " are no longer in the transaction log, " +
+                    "continuing at " + to + ", run elasticsearch.reconcile to repair the indexes");
+            unsent.clear();
+            unsent.addLast(marker(to, capture.published()));
+            return to;
+        }
+        return txId;
+    }
+
+    ElasticSearchChangeCapture.Changes decode(CommittedTransactionRepresentation tx, Tokens tokens) throws IOException {
+        ElasticSearchRoutingTable table = routing.get();
+        Set<String> routingProperties = table.getRoutingProperties();
+        PrimitiveLongSet changed = Primitive.longSet();
+        PrimitiveLongSet deleted = Primitive.longSet();
+        PrimitiveLongSet created = Primitive.longSet();
+        PrimitiveLongObjectMap<List<Label>> deletedLabels = Primitive.longObjectMap();
+        PrimitiveLongObjectMap<Map<String, Object>> beforeValues = Primitive.longObjectMap();
+        PrimitiveLongObjectMap<Map<String, Object>> afterValues = Primitive.longObjectMap();
+        PrimitiveLongSet unreadableIds = Primitive.longSet();
+        PrimitiveLongObjectMap<List<Label>> assignedLabels = Primitive.longObjectMap();
+        PrimitiveLongObjectMap<List<Label>> removedLabels = Primitive.longObjectMap();
+        tx.accept(command -> {
+            if (command instanceof Command.NodeCommand) {
+                Command.NodeCommand nodeCommand = (Command.NodeCommand) command;
+                NodeRecord before = nodeCommand.getBefore(), after = nodeCommand.getAfter();
+                if (before.inUse() && !after.inUse()) {
+                    deleted.add(after.getId());
+                    deletedLabels.put(after.getId(), tokens.labels(before));
+                } else if (after.inUse()) {
+                    if (!before.inUse()) created.add(after.getId());
+                    List<Label> beforeLabels = before.inUse() ? tokens.labels(before) : null;
+                    List<Label> afterLabels = tokens.labels(after);
+                    if (beforeLabels == null || afterLabels == null) {
+                        // created, or labels in dynamic records: reindex the whole node
+                        changed.add(after.getId());
+                    } else {
+                        List<Label> assigned = new ArrayList<>(afterLabels), removed = new ArrayList<>(beforeLabels);
+                        assigned.removeAll(beforeLabels);
+                        removed.removeAll(afterLabels);
+                        if (!assigned.isEmpty()) assignedLabels.put(after.getId(), assigned);
+                        if (!removed.isEmpty()) removedLabels.put(after.getId(), removed);
+                    }
+                }
+            } else if (command instanceof Command.PropertyCommand) {
+                Command.PropertyCommand propertyCommand = (Command.PropertyCommand) command;
+                if (propertyCommand.getAfter().isNodeSet()) {
+                    changed.add(propertyCommand.getNodeId());
+                }
+                if (propertyCommand.getBefore().isNodeSet()) {
+                    changed.add(propertyCommand.getBefore().getNodeId());
+                    collect(propertyCommand.getBefore(), tokens, routingProperties, beforeValues, unreadableIds);
+                }
+                if (propertyCommand.getAfter().isNodeSet()) {
+                    collect(propertyCommand.getAfter(), tokens, routingProperties, afterValues, unreadableIds);
+                }
+            }
+            return false;
+        });
+
+        ElasticSearchChangeCapture.Changes changes = new ElasticSearchChangeCapture.Changes();
+        changed.visitKeys(nodeId -> {
+            if (!deleted.contains(nodeId)) changes.upsert(nodeId);
+            return false;
+        });
+        assignedLabels.visitEntries((nodeId, labels) -> {
+            for (Label label : labels) changes.assignLabel(nodeId, label);
+            return false;
+        });
+        removedLabels.visitEntries((nodeId, labels) -> {
+            // the document id is only known from the node, it is read when the delete is sent
+            changes.delete(nodeId, new ElasticSearchChangeCapture.DeletedNode(null, labels, Collections.<String, Object>emptyMap()));
+            return false;
+        });
+        beforeValues.visitEntries((nodeId, values) -> {
+            if (deleted.contains(nodeId)) return false;
+            Map<String, Object> after = afterValues.get(nodeId);
+            Map<String, Object> moved = new HashMap<>();
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                if (routingProperties.contains(value.getKey()) && (after == null || !value.getValue().equals(after.get(value.getKey())))) {
+                    moved.put(value.getKey(), value.getValue());
+                }
+            }
+            if (!moved.isEmpty()) {
+                // a changed date property moves the documents to another time based index
+                changes.delete(nodeId, new ElasticSearchChangeCapture.DeletedNode(null, null, moved));
+            }
+            return false;
+        });
+        afterValues.visitEntries((nodeId, values) -> {
+            if (deleted.contains(nodeId) || created.contains(nodeId)) return false;
+            Map<String, Object> before = beforeValues.get(nodeId);
+            Map<String, Object> moved = new HashMap<>();
+            for (String key : values.keySet()) {
+                if (routingProperties.contains(key) && (before == null || !before.containsKey(key))) {
+                    moved.put(key, null);
+                }
+            }
+            if (!moved.isEmpty()) {
+                // a date set on an undated node moves its documents out of the plain index
+                changes.delete(nodeId, new ElasticSearchChangeCapture.DeletedNode(null, null, moved));
+            }
+            return false;
+        });
+        deleted.visitKeys(nodeId -> {
+            if (unreadableIds.contains(nodeId)) {
+                // deleting by the node id would miss the documents, and hit another node's with that id
+                logger.warning("ElasticSearch Integration: document id of deleted node " + nodeId + " is not in the transaction log, " +
+                        "its documents are left in place, run elasticsearch.reconcile to remove them");
+                return false;
+            }
+            Map<String, Object> values = beforeValues.get(nodeId);
+            if (values == null) values = Collections.emptyMap();
+            Object id = values.get(ElasticSearchRoutingTable.ID_PROPERTY);
+            List<Label> labels = deletedLabels.get(nodeId);
+            if (labels == null) labels = allIndexLabels(table);
+            changes.delete(nodeId, new ElasticSearchChangeCapture.DeletedNode(String.valueOf(id == null ? nodeId : id), labels, values));
+            return false;
+        });
+        return changes;
+    }
+
+    private static List<Label> allIndexLabels(ElasticSearchRoutingTable table) {
+        List<Label> labels = new ArrayList<>();
+        for (String label : table.getLabels()) labels.add(Label.label(label));
+        return labels;
+    }
+
+    /**
+     * Values of the id and date properties in a property record, nodes whose id can't be read from the
+     * command go to unreadableIds.
+     */
+    private static void collect(PropertyRecord record, Tokens tokens, Set<String> routingProperties,
+                                PrimitiveLongObjectMap<Map<String, Object>> values, PrimitiveLongSet unreadableIds) {
+        for (PropertyBlock block : record) {
+            String key = tokens.propertyKey(block.getKeyIndexId());
+            if (key == null || !(ElasticSearchRoutingTable.ID_PROPERTY.equals(key) || routingProperties.contains(key))) continue;
+            Object value = tokens.value(block);
+            if (value == null) {
+                if (ElasticSearchRoutingTable.ID_PROPERTY.equals(key)) unreadableIds.add(record.getNodeId());
+                continue;
+            }
+            Map<String, Object> nodeValues = values.get(record.getNodeId());
+            if (nodeValues == null) {
+                nodeValues = new HashMap<>();
+                values.put(record.getNodeId(), nodeValues);
+            }
+            nodeValues.put(key, value);
+        }
+    }
+
+    private static long[] marker(long txId, long[] published) {
+        long[] marker = Arrays.copyOf(published, published.length + 1);
+        marker[published.length] = txId;
+        return marker;
+    }
+
+    /**
+     * Stores the last transaction whose changes all went out to ElasticSearch.
+     * Only called from the tailing thread, or once it has stopped.
+     */
+    void savePosition() {
+        long sentPosition = savedPosition;
+        while (!unsent.isEmpty() && capture.isSent(Arrays.copyOf(unsent.peekFirst(), unsent.peekFirst().length - 1))) {
+            long[] marker = unsent.pollFirst();
+            sentPosition = marker[marker.length - 1];
+        }
+        if (sentPosition == savedPosition) return;
+        try {
+            File tmp = new File(positionFile.getPath() + ".tmp");
+            Files.write(tmp.toPath(), String.valueOf(sentPosition).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), positionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedPosition = sentPosition;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "ElasticSearch Integration: could not store transaction log position " + sentPosition, e);
+        }
+    }
+
+    private long readPosition(TransactionIdStore transactionIdStore) throws IOException {
+        if (positionFile.exists()) {
+            return Long.parseLong(new String(Files.readAllBytes(positionFile.toPath()), StandardCharsets.UTF_8).trim());
+        }
+        // first start in this mode: only follow changes from now on
+        return transactionIdStore.getLastClosedTransactionId();
+    }
+
+    /**
+     * Label and property key names for decoding records, cached as tokens never change id.
+     */
+    static class Tokens {
+        private final TokenHolder<Token> labels;
+        private final TokenHolder<Token> propertyKeys;
+        private final Map<Integer, Label> labelCache = new HashMap<>();
+        private final Map<Integer, String> propertyKeyCache = new HashMap<>();
+
+        Tokens(TokenHolder<Token> labels, TokenHolder<Token> propertyKeys) {
+            this.labels = labels;
+            this.propertyKeys = propertyKeys;
+        }
+
+        String propertyKey(int keyId) {
+            String key = propertyKeyCache.get(keyId);
+            if (key == null) {
+                Token token = propertyKeys.getTokenByIdOrNull(keyId);
+                if (token == null) return null;
+                key = token.name();
+                propertyKeyCache.put(keyId, key);
+            }
+            return key;
+        }
+
+        /**
+         * Labels of a record, or null when they live in dynamic records that aren't part of the command.
+         */
+        List<Label> labels(NodeRecord record) {
+            long[] labelIds = NodeLabelsField.parseLabelsField(record).getIfLoaded();
+            if (labelIds == null) return null;
+            List<Label> result = new ArrayList<>(labelIds.length);
+            for (long labelId : labelIds) {
+                Label label = labelCache.get((int) labelId);
+                if (label == null) {
+                    Token token = labels.getTokenByIdOrNull((int) labelId);
+                    if (token == null) return null;
+                    label = Label.label(token.name());
+                    labelCache.put((int) labelId, label);
+                }
+                result.add(label);
+            }
+            return result;
+        }
+
+        /**
+         * Value of a property block as far as the command carries it: inlined values, and strings whose dynamic
+         * records were written with it; null otherwise.
+         */
+        Object value(PropertyBlock block) {
+            try {
+                if (block.getType() == PropertyType.STRING) {
+                    // longer strings live in dynamic records, the command carries them when it wrote or deleted them
+                    if (block.isLight()) return null;
+                    return PropertyStore.decodeString(AbstractDynamicStore.readFullByteArrayFromHeavyRecords(block.getValueRecords(), PropertyType.STRING).other());
+                }
+                return block.getType().value(block, null).asObject();
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchChangeBufferTest {
+
+    @Test
+    public void testDrainsInPublishOrder() {
+        ElasticSearchChangeBuffer buffer = new ElasticSearchChangeBuffer(8);
+        buffer.put(ElasticSearchChangeCapture.UPSERT, 1, null);
+        buffer.put(ElasticSearchChangeCapture.DELETE, 2, "payload");
+        assertEquals(2, buffer.size());
+
+        List<String> records = new ArrayList<>();
+        assertEquals(2, buffer.drain((op, nodeId, payload) -> records.add(op + ":" + nodeId + ":" + payload), 10));
+        assertEquals("[1:1:null, 2:2:payload]", records.toString());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testManyProducersThroughSmallBuffer() throws Exception {
+        final int producers = 4, perProducer = 20000;
+        ElasticSearchChangeBuffer buffer = new ElasticSearchChangeBuffer(64);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final long base = p * 1_000_000L;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.put(ElasticSearchChangeCapture.UPSERT, base + i, null);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        int received = 0;
+        while (received < producers * perProducer) {
+            received += buffer.drain((op, nodeId, payload) -> {
+                int producer = (int) (nodeId / 1_000_000L);
+                assertEquals("records of one producer stay in order", last[producer] + 1, nodeId % 1_000_000L);
+                last[producer] = nodeId % 1_000_000L;
+            }, 100);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, buffer.size());
+        for (long l : last) {
+            assertEquals(perProducer - 1, l);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.params.Parameters;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.api.KernelTransactionImplementation;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * The bulks the {@link ElasticSearchChangeCapture} workers send, recorded by a client standing in for ElasticSearch.
+ * Transactions committed before the workers start end up in one batch.
+ */
+public class ElasticSearchChangeCaptureTest {
+
+    private static final Label PERSON = Label.label("Person"), AUTHOR = Label.label("Author"), EVENT = Label.label("Event");
+    private static final long MARCH_15 = 1489536000000L, APRIL_1 = 1491004800000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<List<String>> bulks = new CopyOnWriteArrayList<>();
+    private final List<Boolean> refreshed = new CopyOnWriteArrayList<>();
+    private volatile int status = 200;
+    private volatile CountDownLatch hold;
+    private GraphDatabaseService db;
+    private ElasticSearchChangeCapture capture;
+    private boolean recording;
+
+    private void start(String indexSpec, int workers) throws Exception {
+        ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(indexSpec), true, true);
+        ElasticSearchEventHandler handler = new ElasticSearchEventHandler(recordingClient(), indexSettings);
+        handler.setUseAsyncJest(false);
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase(folder.getRoot());
+        capture = new ElasticSearchChangeCapture(db, handler, workers, 1024);
+    }
+
+    /**
+     * Captures the transactions from now on, those before only set up the graph.
+     */
+    private void record() {
+        db.registerTransactionEventHandler(capture);
+        recording = true;
+    }
+
+    /**
+     * Starts the workers and waits for everything published so far to be sent.
+     */
+    private void send() throws InterruptedException {
+        long[] published = capture.published();
+        capture.start();
+        await(() -> capture.isSent(published));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (hold != null) {
+            hold.countDown();
+        }
+        if (capture != null) {
+            capture.stop();
+        }
+        if (recording) {
+            db.unregisterTransactionEventHandler(capture);
+        }
+        if (db != null) {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void testAssignedLabelIndexesOnlyItsIndex() throws Exception {
+        start("people:Person(name),authors:Author(name)", 1);
+        Node node = createNode(PERSON);
+        record();
+
+        try (Transaction tx = db.beginTx()) {
+            node.addLabel(AUTHOR);
+            tx.success();
+        }
+        send();
+        assertEquals(Arrays.asList(Arrays.asList("index authors/1")), bulks);
+    }
+
+    @Test
+    public void testDeleteOfEarlierTransactionSkipsIndexTheNodeIsBackIn() throws Exception {
+        start("events{createdAt}:Event(name)", 1);
+        Node node = createNode(EVENT);
+        setProperty(node, "createdAt", MARCH_15);
+        record();
+
+        setProperty(node, "createdAt", APRIL_1);
+        setProperty(node, "createdAt", MARCH_15);
+        send();
+        // the delete of the first move would otherwise replace the document's index request
+        assertEquals(1, bulks.size());
+        assertEquals(Arrays.asList("delete events-2017.04.01/1", "index events-2017.03.15/1"), sorted(bulks.get(0)));
+    }
+
+    @Test
+    public void testLabelRemovedThenNodeDeletedDeletesByRecordedId() throws Exception {
+        start("people:Person(name),authors:Author(name)", 1);
+        Node node = createNode(PERSON, AUTHOR);
+        record();
+
+        try (Transaction tx = db.beginTx()) {
+            node.removeLabel(AUTHOR);
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            node.delete();
+            tx.success();
+        }
+        send();
+        assertEquals(1, bulks.size());
+        assertEquals(Arrays.asList("delete authors/1", "delete people/1"), sorted(bulks.get(0)));
+    }
+
+    @Test
+    public void testRefreshOfOneTransactionAppliesToItsBatch() throws Exception {
+        start("people:Person(name)", 1);
+        Node node = createNode(PERSON);
+        record();
+
+        setProperty(node, "name", "Bea");
+        try (Transaction tx = db.beginTx()) {
+            requestRefresh();
+            node.setProperty("name", "Cy");
+            tx.success();
+        }
+        send();
+        assertEquals(Arrays.asList(Arrays.asList("index people/1")), bulks);
+        assertEquals(Arrays.asList(true), refreshed);
+    }
+
+    @Test
+    public void testRecordsCountAsSentOnceTheirBulkCompleted() throws Exception {
+        start("people:Person(name)", 2);
+        record();
+        hold = new CountDownLatch(1);
+        createNode(PERSON);
+        createNode(PERSON);
+        long[] published = capture.published();
+        assertEquals(2, published[0] + published[1]);
+
+        capture.start();
+        Thread.sleep(50);
+        assertFalse("held by ElasticSearch", capture.isSent(published));
+        assertTrue(capture.isSent(new long[2]));
+
+        hold.countDown();
+        await(() -> capture.isSent(published));
+        assertFalse(bulks.isEmpty());
+        assertFalse(capture.isFailed(new long[2], published));
+    }
+
+    @Test
+    public void testFailedBulkIsNotReportedIndexed() throws Exception {
+        start("people:Person(name)", 1);
+        ElasticSearchIndexWatermark watermark = new ElasticSearchIndexWatermark(this::lastTxId);
+        capture.setWatermark(watermark);
+        record();
+        capture.start();
+
+        status = 400;
+        long[] before = capture.published();
+        Node node = createNode(PERSON);
+        long failedTx = lastTxId();
+        long[] failed = capture.published();
+        await(() -> capture.isSent(failed));
+
+        status = 200;
+        setProperty(node, "name", "Bea");
+
+        assertTrue(capture.isFailed(before, failed));
+        assertFalse(capture.isFailed(failed, capture.published()));
+        assertFalse(watermark.await(failedTx, 1000));
+        assertTrue(watermark.await(lastTxId(), 1000));
+    }
+
+    private void requestRefresh() {
+        ((KernelTransactionImplementation) ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class).getKernelTransactionBoundToThisThread(true))
+                .setMetaData(Collections.singletonMap(ElasticSearchEventHandler.REFRESH_META_DATA, "wait_for"));
+    }
+
+    private long lastTxId() {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastClosedTransactionId();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void setProperty(Node node, String key, Object value) {
+        try (Transaction tx = db.beginTx()) {
+            node.setProperty(key, value);
+            tx.success();
+        }
+    }
+
+    private Node createNode(Label... labels) {
+        Node node;
+        try (Transaction tx = db.beginTx()) {
+            node = db.createNode(labels);
+            node.setProperty("sketchID", "1");
+            node.setProperty("name", "Ann");
+            tx.success();
+        }
+        return node;
+    }
+
+    private static List<String> sorted(List<String> actions) {
+        List<String> sorted = new ArrayList<>(actions);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    /**
+     * Records each bulk as "method index/id" per action and whether it waits for a refresh, and answers it
+     * with the current status once released.
+     */
+    private JestClient recordingClient() {
+        return (JestClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{JestClient.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("execute")) {
+                return null;
+            }
+            CountDownLatch hold = this.hold;
+            if (hold != null) {
+                hold.await();
+            }
+            Bulk bulk = (Bulk) args[0];
+            List<String> actions = new ArrayList<>();
+            String[] lines = bulk.getData(new Gson()).split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                JsonObject meta = new JsonParser().parse(lines[i]).getAsJsonObject();
+                String bulkMethod = meta.entrySet().iterator().next().getKey();
+                JsonObject target = meta.getAsJsonObject(bulkMethod);
+                actions.add(bulkMethod + " " + target.get("_index").getAsString() + "/" + target.get("_id").getAsString());
+                if (!bulkMethod.equals("delete")) i++;
+            }
+            bulks.add(actions);
+            refreshed.add(bulk.getParameter(Parameters.REFRESH).contains("wait_for"));
+            BulkResult result = new BulkResult(new Gson());
+            result.setResponseCode(status);
+            result.setSucceeded(status < 300);
+            return result;
+        });
+    }
+}
@@ -0,0 +1,237 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.BulkResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Commit latency of the different indexing modes against a simulated ElasticSearch. All modes share one
+ * database and a warmup, then run in shuffled order over several rounds with concurrent writers.
+ * Run with {@code mvn test -Dtest=ElasticSearchCommitLatencyBenchmarkTest -Dbenchmark=true}.
+ */
+public class ElasticSearchCommitLatencyBenchmarkTest {
+
+    private static final int WRITERS = 4;
+    private static final long BYTES_PER_MILLI = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong bulks = new AtomicLong();
+    private ExecutorService elasticSearch;
+    private JestClient client;
+    private ElasticSearchIndexSettings indexSettings;
+    private long bulkMillis, stallMillis;
+    private int stallEvery;
+    private String text;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        elasticSearch = Executors.newFixedThreadPool(4);
+        client = simulatedClient();
+        indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec("label:Label(foo,bar,baz)"), true, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (elasticSearch != null) elasticSearch.shutdownNow();
+    }
+
+    /**
+     * A healthy cluster nearby and small documents.
+     */
+    @Test
+    public void commitLatency() throws Exception {
+        bulkMillis = 2;
+        text = "some longer text value that ends up in the document";
+        commitLatency(500, 500, 5);
+    }
+
+    /**
+     * A loaded cluster taking 50ms a bulk and stalling for a second on every 20th, with 16KB documents.
+     */
+    @Test
+    public void commitLatencySlowElasticSearch() throws Exception {
+        bulkMillis = 50;
+        stallEvery = 20;
+        stallMillis = 1000;
+        char[] chars = new char[16 * 1024];
+        Arrays.fill(chars, 'x');
+        text = new String(chars);
+        commitLatency(50, 100, 3);
+    }
+
+    private void commitLatency(int warmup, int commits, int rounds) throws Exception {
+        // small log files, the in-memory file system copies the whole log on every force
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder(folder.getRoot())
+                .setConfig(GraphDatabaseSettings.logical_log_rotation_threshold, "1M").newGraphDatabase();
+        ElasticSearchEventHandler syncHandler = new ElasticSearchEventHandler(client, indexSettings);
+        syncHandler.setUseAsyncJest(false);
+        ElasticSearchChangeCapture capture = new ElasticSearchChangeCapture(db, syncHandler, 2, 65536);
+        capture.start();
+
+        Map<String, TransactionEventHandler<?>> modes = new LinkedHashMap<>();
+        modes.put("none", null);
+        modes.put("sync", syncHandler);
+        modes.put("async", new ElasticSearchEventHandler(client, indexSettings));
+        modes.put("capture", capture);
+        Map<String, long[]> latencies = new HashMap<>();
+        Map<String, Long> elapsed = new HashMap<>();
+        long seed = Long.getLong("benchmark.seed", System.nanoTime());
+        Random random = new Random(seed);
+        try {
+            for (Map.Entry<String, TransactionEventHandler<?>> mode : modes.entrySet()) {
+                run(db, mode.getValue(), warmup);
+                drain(capture);
+            }
+            List<String> order = new ArrayList<>(modes.keySet());
+            for (int round = 0; round < rounds; round++) {
+                Collections.shuffle(order, random);
+                for (String mode : order) {
+                    long start = System.nanoTime();
+                    long[] measured = run(db, modes.get(mode), commits);
+                    elapsed.merge(mode, System.nanoTime() - start, Long::sum);
+                    latencies.merge(mode, measured, ElasticSearchCommitLatencyBenchmarkTest::concat);
+                    drain(capture);
+                }
+            }
+        } finally {
+            capture.stop();
+            db.shutdown();
+        }
+        System.out.printf("%d writers, %d rounds of %d commits per writer, %dms bulks, %d chars of text, seed %d%n",
+                WRITERS, rounds, commits, bulkMillis, text.length(), seed);
+        for (String mode : modes.keySet()) {
+            report(mode, latencies.get(mode), elapsed.get(mode));
+        }
+    }
+
+    /**
+     * Waits for the capture and async backlogs, so they don't slow down the next mode.
+     */
+    private void drain(ElasticSearchChangeCapture capture) throws InterruptedException {
+        long[] published = capture.published();
+        while (!capture.isSent(published) || inFlight.get() > 0) Thread.sleep(1);
+    }
+
+    /**
+     * Commits from {@link #WRITERS} threads at once with the handler registered, latencies in nanoseconds.
+     */
+    private long[] run(GraphDatabaseService db, TransactionEventHandler<?> handler, int commits) throws Exception {
+        if (handler != null) db.registerTransactionEventHandler(handler);
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                results.add(writers.submit(() -> {
+                    long[] latencies = new long[commits];
+                    for (int i = 0; i < commits; i++) {
+                        long start = System.nanoTime();
+                        commit(db, i);
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                    return latencies;
+                }));
+            }
+            long[] latencies = new long[0];
+            for (Future<long[]> result : results) {
+                latencies = concat(latencies, result.get());
+            }
+            return latencies;
+        } finally {
+            writers.shutdown();
+            if (handler != null) db.unregisterTransactionEventHandler(handler);
+        }
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private void commit(GraphDatabaseService db, int i) {
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("foo", "foo" + i);
+            node.setProperty("bar", i);
+            node.setProperty("baz", text + i);
+            tx.success();
+        }
+    }
+
+    private void report(String mode, long[] latencies, long elapsedNanos) {
+        Arrays.sort(latencies);
+        System.out.printf("%-8s commit latency p50 %7.1f us  p99 %8.1f us  max %8.1f us  %7.0f commits/s%n", mode,
+                latencies[latencies.length / 2] / 1000d,
+                latencies[(int) (latencies.length * 0.99)] / 1000d,
+                latencies[latencies.length - 1] / 1000d,
+                latencies.length * 1e9 / elapsedNanos);
+    }
+
+    /**
+     * Serializes the request on the calling thread like Jest does, then answers successfully after the bulk
+     * time plus the transfer time of the request.
+     */
+    @SuppressWarnings("unchecked")
+    private JestClient simulatedClient() {
+        return (JestClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{JestClient.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "execute":
+                    return respond(((Action<?>) args[0]).getData(gson));
+                case "executeAsync":
+                    String data = ((Action<?>) args[0]).getData(gson);
+                    inFlight.incrementAndGet();
+                    elasticSearch.submit(() -> {
+                        try {
+                            ((JestResultHandler<BulkResult>) args[1]).completed(respond(data));
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                        return null;
+                    });
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private BulkResult respond(String data) throws InterruptedException {
+        long millis = bulkMillis + (data == null ? 0 : data.length() / BYTES_PER_MILLI);
+        if (stallEvery > 0 && bulks.incrementAndGet() % stallEvery == 0) millis += stallMillis;
+        TimeUnit.MILLISECONDS.sleep(millis);
+        BulkResult result = new BulkResult(new Gson());
+        result.setSucceeded(true);
+        return result;
+    }
+}
@@ -0,0 +1,288 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * The bulks {@link ElasticSearchEventHandler#beforeCommit} produces, recorded by a client standing in for ElasticSearch.
+ */
+public class ElasticSearchEventHandlerBulkTest {
+
+    private static final Label PERSON = Label.label("Person"), AUTHOR = Label.label("Author"), EVENT = Label.label("Event");
+    private static final long MARCH_15 = 1489536000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<List<String>> bulks = new CopyOnWriteArrayList<>();
+    private volatile int status = 200;
+    private GraphDatabaseService db;
+    private ElasticSearchEventHandler handler;
+    private ElasticSearchOutageBuffer outage;
+
+    private void start(String indexSpec) throws Exception {
+        ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(indexSpec), true, true);
+        handler = new ElasticSearchEventHandler(recordingClient(), indexSettings);
+        handler.setUseAsyncJest(false);
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase(folder.getRoot());
+        db.registerTransactionEventHandler(handler);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (outage != null) {
+            outage.stop();
+        }
+        if (db != null) {
+            db.unregisterTransactionEventHandler(handler);
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void testAssignedLabelIndexesOnlyItsIndex() throws Exception {
+        start("people:Person(name),authors:Author(name)");
+        Node node = createNode(PERSON);
+
+        try (Transaction tx = db.beginTx()) {
+            node.addLabel(AUTHOR);
+            tx.success();
+        }
+        assertEquals(Arrays.asList(Arrays.asList("index authors/1")), bulks);
+    }
+
+    @Test
+    public void testRemovedLabelDeletesOnlyItsIndex() throws Exception {
+        start("people:Person(name),authors:Author(name)");
+        Node node = createNode(PERSON, AUTHOR);
+
+        try (Transaction tx = db.beginTx()) {
+            node.removeLabel(AUTHOR);
+            tx.success();
+        }
+        assertEquals(Arrays.asList(Arrays.asList("delete authors/1")), bulks);
+    }
+
+    @Test
+    public void testRelabelAndPropertyChangeInOneBulk() throws Exception {
+        start("people:Person(name),authors:Author(name)");
+        Node node = createNode(PERSON);
+
+        try (Transaction tx = db.beginTx()) {
+            node.removeLabel(PERSON);
+            node.addLabel(AUTHOR);
+            node.setProperty("name", "Bea");
+            tx.success();
+        }
+        assertEquals(1, bulks.size());
+        assertEquals(Arrays.asList("delete people/1", "index authors/1"), sorted(bulks.get(0)));
+    }
+
+    @Test
+    public void testRemovedLabelKeepsIndexSharedWithRemainingLabel() throws Exception {
+        start("people:Person(name),people:Author(name)");
+        Node node = createNode(PERSON, AUTHOR);
+
+        try (Transaction tx = db.beginTx()) {
+            node.removeLabel(AUTHOR);
+            node.setProperty("name", "Bea");
+            tx.success();
+        }
+        assertEquals(Arrays.asList(Arrays.asList("index people/1")), bulks);
+    }
+
+    @Test
+    public void testCreatedNodeIndexedOnce() throws Exception {
+        start("people:Person(name),authors:Author(name)");
+        createNode(PERSON, AUTHOR);
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(PERSON, AUTHOR);
+            node.setProperty("sketchID", "2");
+            node.setProperty("name", "Cy");
+            tx.success();
+        }
+        assertEquals(1, bulks.size());
+        assertEquals(Arrays.asList("index authors/2", "index people/2"), sorted(bulks.get(0)));
+    }
+
+    @Test
+    public void testRemovedDateMovesDocumentToPlainIndex() throws Exception {
+        start("events{createdAt}:Event(name)");
+        Node node = createNode(EVENT);
+        setProperty(node, "createdAt", MARCH_15);
+        bulks.clear();
+
+        try (Transaction tx = db.beginTx()) {
+            node.removeProperty("createdAt");
+            tx.success();
+        }
+        assertEquals(1, bulks.size());
+        assertEquals(Arrays.asList("delete events-2017.03.15/1", "index events/1"), sorted(bulks.get(0)));
+    }
+
+    @Test
+    public void testDateSetOnUndatedNodeMovesDocumentOutOfPlainIndex() throws Exception {
+        start("events{createdAt}:Event(name)");
+        Node node = createNode(EVENT);
+
+        setProperty(node, "createdAt", MARCH_15);
+        assertEquals(1, bulks.size());
+        assertEquals(Arrays.asList("delete events/1", "index events-2017.03.15/1"), sorted(bulks.get(0)));
+    }
+
+    @Test
+    public void testCreatedDatedNodeIsNotMoved() throws Exception {
+        start("events{createdAt}:Event(name)");
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(EVENT);
+            node.setProperty("sketchID", "2");
+            node.setProperty("createdAt", MARCH_15);
+            tx.success();
+        }
+        assertEquals(Arrays.asList(Arrays.asList("index events-2017.03.15/2")), bulks);
+    }
+
+    @Test
+    public void testRejectedBulkIsBufferedUntilElasticSearchTakesIt() throws Exception {
+        start("people:Person(name)");
+        outage = new ElasticSearchOutageBuffer(new ElasticSearchOutageBuffer.Connection() {
+            @Override
+            public boolean healthy() {
+                return true;
+            }
+
+            @Override
+            public void connected() {
+            }
+
+            @Override
+            public void send(Collection<BulkableAction> actions, boolean refresh) throws IOException {
+                handler.execute(actions, refresh);
+            }
+        }, 100, null, 10);
+        handler.setOutageBuffer(outage);
+        outage.start();
+        await(outage::isAvailable);
+
+        status = 503;
+        createNode(PERSON);
+        assertEquals(1, outage.size());
+        assertFalse(outage.isAvailable());
+        // draining attempts are rejected as well and keep the change
+        Thread.sleep(100);
+        assertEquals(1, outage.size());
+        assertFalse(bulks.isEmpty());
+
+        status = 200;
+        await(outage::isAvailable);
+        assertEquals(0, outage.size());
+        assertEquals(Arrays.asList("index people/1"), bulks.get(bulks.size() - 1));
+    }
+
+    @Test
+    public void testFailedBulkIsNotReportedIndexed() throws Exception {
+        start("people:Person(name)");
+        ElasticSearchIndexWatermark watermark = new ElasticSearchIndexWatermark(this::lastTxId);
+        handler.setWatermark(watermark);
+
+        status = 400;
+        createNode(PERSON);
+        long failedTx = lastTxId();
+        status = 200;
+        createNode(PERSON);
+
+        assertFalse(watermark.await(failedTx, 1000));
+        assertTrue(watermark.await(lastTxId(), 1000));
+    }
+
+    private long lastTxId() {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastClosedTransactionId();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void setProperty(Node node, String key, Object value) {
+        bulks.clear();
+        try (Transaction tx = db.beginTx()) {
+            node.setProperty(key, value);
+            tx.success();
+        }
+    }
+
+    private Node createNode(Label... labels) {
+        Node node;
+        try (Transaction tx = db.beginTx()) {
+            node = db.createNode(labels);
+            node.setProperty("sketchID", "1");
+            node.setProperty("name", "Ann");
+            tx.success();
+        }
+        bulks.clear();
+        return node;
+    }
+
+    private static List<String> sorted(List<String> actions) {
+        List<String> sorted = new ArrayList<>(actions);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    /**
+     * Records each bulk as "method index/id" per action and answers it successfully.
+     */
+    private JestClient recordingClient() {
+        return (JestClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{JestClient.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("execute")) {
+                return null;
+            }
+            List<String> actions = new ArrayList<>();
+            String[] lines = ((Bulk) args[0]).getData(new Gson()).split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                JsonObject meta = new JsonParser().parse(lines[i]).getAsJsonObject();
+                String bulkMethod = meta.entrySet().iterator().next().getKey();
+                JsonObject target = meta.getAsJsonObject(bulkMethod);
+                actions.add(bulkMethod + " " + target.get("_index").getAsString() + "/" + target.get("_id").getAsString());
+                if (!bulkMethod.equals("delete")) i++;
+            }
+            bulks.add(actions);
+            BulkResult result = new BulkResult(new Gson());
+            result.setResponseCode(status);
+            result.setSucceeded(status < 300);
+            return result;
+        });
+    }
+}
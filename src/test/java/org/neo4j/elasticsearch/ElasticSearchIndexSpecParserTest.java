@@ -2,6 +2,8 @@ package org.neo4j.elasticsearch;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -40,5 +42,56 @@ public class ElasticSearchIndexSpecParserTest {
 //    	Map rv = parseIndexSpec("index_name:Label(foo,bar),index_name:Label(quux)");
 //    }
 
+    @Test
+    public void testSeveralIndexesPerLabel() throws ParseException {
+        Map<String, List<ElasticSearchIndexSpec>> rv =
+                parseIndexSpec("typeahead:Label(name),fulltext:Label(name,description),other_index:OtherLabel(baz)");
+        assertEquals(2, rv.size());
+        assertEquals(2, rv.get("Label").size());
+        assertEquals("typeahead", rv.get("Label").get(0).getIndexName());
+        assertEquals("fulltext", rv.get("Label").get(1).getIndexName());
+    }
 
+    @Test(expected=ParseException.class)
+    public void testSameIndexTwiceForLabel() throws ParseException {
+        parseIndexSpec("index_name:Label(foo,bar),index_name:Label(quux)");
+    }
+
+    @Test
+    public void testTimeBasedIndexRouting() throws ParseException {
+        List<ElasticSearchIndexSpec> specs = parseIndexSpec("events{createdAt|yyyy.MM}:Event(name,createdAt),daily{createdAt}:Event(name)").get("Event");
+        ElasticSearchIndexSpec monthly = specs.get(0), daily = specs.get(1);
+        assertTrue(monthly.isTimeBased());
+        assertEquals("createdAt", monthly.getDateProperty());
+        assertEquals("events-*", monthly.getIndexPattern());
+
+        assertEquals("events-2017.03", monthly.getIndexName(Collections.singletonMap("createdAt", 1489536000000L)));
+        assertEquals("events-2017.03", monthly.getIndexName(Collections.singletonMap("createdAt", "2017-03-15T10:00:00+01:00")));
+        assertEquals("daily-2017.03.15", daily.getIndexName(Collections.singletonMap("createdAt", "2017-03-15")));
+        assertEquals("events", monthly.getIndexName(Collections.<String, Object>emptyMap()));
+    }
+
+    @Test(expected=ParseException.class)
+    public void testDatePatternWithMonthNameRejected() throws ParseException {
+        parseIndexSpec("events{createdAt|yyyy.MMM}:Event(name)");
+    }
+
+    @Test(expected=ParseException.class)
+    public void testDatePatternWithDayNameRejected() throws ParseException {
+        parseIndexSpec("events{createdAt|yyyy.MM.dd-EEE}:Event(name)");
+    }
+
+    @Test
+    public void testDocumentsProjectedFromSharedProperties() throws ParseException {
+        List<ElasticSearchIndexSpec> specs = parseIndexSpec("typeahead:Label(name),fulltext:Label(name,description)").get("Label");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("name", "foo");
+        properties.put("description", "foo bar");
+        properties.put("secret", 42);
+
+        assertEquals(Collections.singletonMap("name", "foo"), specs.get(0).document(properties));
+        Map<String, Object> fulltext = new HashMap<>(properties);
+        fulltext.remove("secret");
+        assertEquals(fulltext, specs.get(1).document(properties));
+    }
 }
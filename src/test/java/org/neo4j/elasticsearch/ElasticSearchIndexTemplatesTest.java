@@ -0,0 +1,38 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.neo4j.elasticsearch.ElasticSearchIndexSpecParser.parseIndexSpec;
+
+public class ElasticSearchIndexTemplatesTest {
+
+    @Test
+    public void testTemplatePerIndexWithDateMapping() throws Exception {
+        Map<String, String> templates = ElasticSearchIndexTemplates.templates(
+                parseIndexSpec("events{createdAt}:Event(name,createdAt),people:Person(name),people:Author(name)"), "10s", 2);
+        assertEquals(2, templates.size());
+
+        JsonObject events = new JsonParser().parse(templates.get("neo4j-events")).getAsJsonObject();
+        assertEquals("events-*", events.get("template").getAsString());
+        assertEquals("10s", events.getAsJsonObject("settings").get("refresh_interval").getAsString());
+        assertEquals(2, events.getAsJsonObject("settings").get("number_of_shards").getAsInt());
+        assertEquals("date", events.getAsJsonObject("mappings").getAsJsonObject("eventsSync")
+                .getAsJsonObject("properties").getAsJsonObject("createdAt").get("type").getAsString());
+
+        JsonObject people = new JsonParser().parse(templates.get("neo4j-people")).getAsJsonObject();
+        assertEquals("people", people.get("template").getAsString());
+    }
+
+    @Test
+    public void testRefreshIntervalMillis() throws Exception {
+        assertEquals(5000, ElasticSearchIndexTemplates.millis("5s"));
+        assertEquals(500, ElasticSearchIndexTemplates.millis("500ms"));
+        assertEquals(120000, ElasticSearchIndexTemplates.millis("2m"));
+        assertEquals(0, ElasticSearchIndexTemplates.millis("-1"));
+    }
+}
@@ -0,0 +1,90 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchIndexWatermarkTest {
+
+    private final AtomicLong lastClosed = new AtomicLong(10);
+    private final ElasticSearchIndexWatermark watermark = new ElasticSearchIndexWatermark(lastClosed::get);
+
+    @Test
+    public void testPendingTransactionHoldsWatermark() {
+        AtomicBoolean indexed = new AtomicBoolean();
+        watermark.beginCommit();
+        lastClosed.set(11);
+        assertEquals(10, watermark.indexedUpTo());
+
+        watermark.committed(11, indexed::get);
+        assertEquals(10, watermark.indexedUpTo());
+
+        indexed.set(true);
+        assertEquals(11, watermark.indexedUpTo());
+    }
+
+    @Test
+    public void testRolledBackTransactionReleasesWatermark() {
+        watermark.beginCommit();
+        lastClosed.set(12);
+        assertEquals(10, watermark.indexedUpTo());
+        watermark.rolledBack();
+        assertEquals(12, watermark.indexedUpTo());
+    }
+
+    @Test
+    public void testIndexedTransactionsArePrunedWithoutAwait() {
+        AtomicBoolean indexed = new AtomicBoolean();
+        for (long txId = 11; txId <= 10010; txId++) {
+            watermark.beginCommit();
+            lastClosed.set(txId);
+            watermark.committed(txId, () -> true);
+            assertEquals(0, watermark.pending());
+        }
+
+        watermark.committed(10011, indexed::get);
+        for (long txId = 10012; txId <= 10100; txId++) {
+            watermark.committed(txId, () -> true);
+        }
+        assertEquals(90, watermark.pending());
+        indexed.set(true);
+        watermark.changed();
+        assertEquals(0, watermark.pending());
+    }
+
+    @Test
+    public void testFailedTransactionIsNotReportedIndexed() throws Exception {
+        watermark.beginCommit();
+        lastClosed.set(11);
+        watermark.committed(11, ElasticSearchIndexWatermark.Indexing.FAILED);
+        watermark.beginCommit();
+        lastClosed.set(12);
+        watermark.committed(12, () -> true);
+
+        assertEquals(12, watermark.indexedUpTo());
+        assertFalse(watermark.await(11, 1000));
+        assertTrue(watermark.await(12, 1000));
+    }
+
+    @Test
+    public void testAwaitTimesOutAndCompletes() throws Exception {
+        AtomicBoolean indexed = new AtomicBoolean();
+        lastClosed.set(11);
+        watermark.committed(11, indexed::get);
+        assertFalse(watermark.await(11, 20));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiting = executor.submit(() -> watermark.await(11, 10000));
+            indexed.set(true);
+            watermark.changed();
+            assertTrue(waiting.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Delete;
+import io.searchbox.core.Index;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchOutageBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private volatile boolean healthy;
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final ElasticSearchOutageBuffer.Connection connection = new ElasticSearchOutageBuffer.Connection() {
+        @Override
+        public boolean healthy() {
+            return healthy;
+        }
+
+        @Override
+        public void connected() {
+        }
+
+        @Override
+        public void send(Collection<BulkableAction> actions, boolean refresh) throws IOException {
+            if (!healthy) throw new IOException("Connection refused");
+            for (BulkableAction action : actions) {
+                sent.add(action.getBulkMethodName() + " " + action.getIndex() + "/" + action.getType() + "/" + action.getId()
+                        + (action.getData(null) == null ? "" : " " + action.getData(null)));
+            }
+        }
+    };
+    private ElasticSearchOutageBuffer buffer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (buffer != null) {
+            buffer.stop();
+        }
+    }
+
+    @Test
+    public void testBuffersUntilHealthyAndDrainsInOrder() throws Exception {
+        buffer = new ElasticSearchOutageBuffer(connection, 100, null, 10);
+        buffer.start();
+        BooleanSupplier drained = buffer.offer(actions(), false);
+        assertNotNull(drained);
+        assertEquals(2, buffer.size());
+        Thread.sleep(50);
+        assertFalse(drained.getAsBoolean());
+
+        healthy = true;
+        await(drained);
+        assertEquals(Arrays.asList("index people/peopleSync/1 {\"name\":\"Ann\"}", "delete people/peopleSync/2"), sent);
+        await(buffer::isAvailable);
+        assertNull(buffer.offer(actions(), false));
+        assertEquals(2L, buffer.stats().get("drained"));
+    }
+
+    @Test
+    public void testDiskBackedBufferSurvivesRestart() throws Exception {
+        File file = new File(folder.getRoot(), "outage.buffer");
+        ElasticSearchOutageBuffer previous = new ElasticSearchOutageBuffer(connection, 100, file, 10);
+        previous.offer(actions(), false);
+        previous.stop();
+
+        healthy = true;
+        buffer = new ElasticSearchOutageBuffer(connection, 100, file, 10);
+        assertEquals(2, buffer.size());
+        buffer.start();
+        await(buffer::isAvailable);
+        assertEquals(Arrays.asList("index people/peopleSync/1 {\"name\":\"Ann\"}", "delete people/peopleSync/2"), sent);
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void testDropsChangesBeyondCapacity() throws Exception {
+        buffer = new ElasticSearchOutageBuffer(connection, 3, null, 10);
+        buffer.offer(actions(), false);
+        buffer.offer(actions(), false);
+        Map<String, Object> stats = buffer.stats();
+        assertEquals(3L, stats.get("size"));
+        assertEquals(1L, stats.get("dropped"));
+        assertEquals(1d, stats.get("fillRatio"));
+    }
+
+    private static List<BulkableAction> actions() {
+        return Arrays.<BulkableAction>asList(
+                new Index.Builder(Collections.singletonMap("name", "Ann")).index("people").type("peopleSync").id("1").build(),
+                new Delete.Builder("2").index("people").type("peopleSync").build());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
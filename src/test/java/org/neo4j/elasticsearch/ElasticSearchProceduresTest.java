@@ -0,0 +1,137 @@
+package org.neo4j.elasticsearch;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.collection.RawIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.exceptions.ProcedureException;
+import org.neo4j.kernel.api.proc.QualifiedName;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Each procedure called through the kernel, which hands procedures a new database facade on every call,
+ * against a stand-in ElasticSearch answering every request successfully.
+ */
+public class ElasticSearchProceduresTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private HttpServer elasticSearch;
+    private GraphDatabaseAPI db;
+
+    @Before
+    public void setUp() throws Exception {
+        elasticSearch = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        elasticSearch.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            requests.add(exchange.getRequestMethod() + " " + path);
+            String body;
+            if (path.startsWith("/_cluster/health")) {
+                body = "{\"status\":\"green\"}";
+            } else if (path.endsWith("/_bulk")) {
+                body = "{\"took\":1,\"errors\":false,\"items\":[]}";
+            } else if (path.contains("_search")) {
+                body = "{\"_scroll_id\":\"scroll\",\"hits\":{\"total\":0,\"hits\":[]}}";
+            } else {
+                body = "{\"acknowledged\":true}";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        elasticSearch.start();
+        db = (GraphDatabaseAPI) new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder(folder.getRoot())
+                .setConfig("elasticsearch.host_name", "http://localhost:" + elasticSearch.getAddress().getPort())
+                .setConfig("elasticsearch.index_spec", "people:Person(name)")
+                .newGraphDatabase();
+        db.getDependencyResolver().resolveDependency(Procedures.class).registerProcedure(ElasticSearchProcedures.class);
+    }
+
+    @After
+    public void tearDown() {
+        if (db != null) db.shutdown();
+        if (elasticSearch != null) elasticSearch.stop(0);
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        List<Object[]> rows = call("search", "people", "{\"query\":{\"match_all\":{}}}");
+        assertEquals(1, rows.size());
+        assertTrue(((String) rows.get(0)[0]).contains("hits"));
+        assertTrue(requests.contains("POST /people/_search"));
+    }
+
+    @Test
+    public void testQueryCacheStats() throws Exception {
+        call("search", "people", "{\"query\":{\"match_all\":{}}}");
+        List<Object[]> rows = call("queryCacheStats");
+        assertEquals(1, rows.size());
+        assertEquals(1L, ((Map<?, ?>) rows.get(0)[0]).get("misses"));
+    }
+
+    @Test
+    public void testOutageBufferStats() throws Exception {
+        List<Object[]> rows = call("outageBufferStats");
+        assertEquals(1, rows.size());
+        assertEquals(0L, ((Map<?, ?>) rows.get(0)[0]).get("size"));
+    }
+
+    @Test
+    public void testAwaitIndexed() throws Exception {
+        List<Object[]> rows = call("awaitIndexed", -1L, 10000L);
+        assertEquals(1, rows.size());
+        assertEquals(true, rows.get(0)[1]);
+    }
+
+    @Test
+    public void testReloadIndexSpec() throws Exception {
+        List<Object[]> rows = call("reloadIndexSpec", "people:Person(name),authors:Author(name)", false);
+        assertEquals(1, rows.size());
+        assertEquals("added", rows.get(0)[0]);
+        assertEquals("authors", rows.get(0)[2]);
+    }
+
+    @Test
+    public void testReconcile() throws Exception {
+        List<Object[]> rows = call("reconcile", 16L, 2L, 0d, false);
+        assertEquals(1, rows.size());
+        assertEquals("people", rows.get(0)[1]);
+        assertEquals(0L, rows.get(0)[4]);
+        assertTrue("scroll contexts are freed", requests.contains("DELETE /_search/scroll"));
+    }
+
+    private List<Object[]> call(String procedure, Object... arguments) throws ProcedureException {
+        List<Object[]> rows = new ArrayList<>();
+        try (Transaction tx = db.beginTx();
+             Statement statement = db.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class).get()) {
+            RawIterator<Object[], ProcedureException> result = statement.procedureCallOperations()
+                    .procedureCallRead(new QualifiedName(new String[]{"elasticsearch"}, procedure), arguments);
+            while (result.hasNext()) {
+                rows.add(result.next());
+            }
+            tx.success();
+        }
+        return rows;
+    }
+}
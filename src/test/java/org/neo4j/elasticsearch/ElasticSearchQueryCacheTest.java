@@ -0,0 +1,86 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchQueryCacheTest {
+
+    private ElasticSearchQueryCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new ElasticSearchQueryCache(null, 1024, 0);
+    }
+
+    @Test
+    public void testNormalizeIgnoresWhitespaceAndKeyOrder() {
+        assertEquals(cache.normalize("{\"size\":10,\"query\":{\"match_all\":{}}}"),
+                cache.normalize("{ \"query\" : { \"match_all\" : { } },\n \"size\" : 10 }"));
+    }
+
+    @Test
+    public void testHitAfterPut() {
+        String query = cache.normalize("{\"query\":{\"match_all\":{}}}");
+        assertNull(cache.get("label", query));
+        assertTrue(cache.put("label", query, "result", cache.generation("label")));
+        assertEquals("result", cache.get("label", query));
+        assertEquals(0.5d, cache.stats().get("hitRatio"));
+    }
+
+    @Test
+    public void testWriteInvalidatesOnlyTouchedIndex() {
+        cache.put("label", "q", "result", cache.generation("label"));
+        cache.put("other", "q", "result", cache.generation("other"));
+
+        cache.beginWrite(Collections.singleton("label"));
+
+        assertNull(cache.get("label", "q"));
+        assertEquals("result", cache.get("other", "q"));
+        assertEquals(1L, cache.stats().get("entries"));
+        assertEquals(1L, cache.stats().get("invalidations"));
+    }
+
+    @Test
+    public void testEvictedEntryIsNotInvalidatedAgain() {
+        String value = new String(new char[200]);
+        cache.put("label", "a", value, 0);
+        cache.put("label", "b", value, 0);
+        cache.put("label", "c", value, 0);
+        assertEquals(1L, cache.stats().get("evictions"));
+
+        cache.beginWrite(Collections.singleton("label"));
+
+        assertEquals(0L, cache.stats().get("entries"));
+        assertEquals(0L, cache.stats().get("weight"));
+        assertEquals(2L, cache.stats().get("invalidations"));
+    }
+
+    @Test
+    public void testNoPutWhileWriteIsPending() {
+        long generation = cache.generation("label");
+        cache.beginWrite(Collections.singleton("label"));
+        assertFalse(cache.put("label", "q", "stale", generation));
+        assertFalse(cache.put("label", "q", "stale", cache.generation("label")));
+
+        cache.endWrite(Collections.singleton("label"));
+        assertTrue(cache.put("label", "q", "fresh", cache.generation("label")));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        String value = new String(new char[200]);
+        cache.put("label", "a", value, 0);
+        cache.put("label", "b", value, 0);
+        cache.get("label", "a");
+        cache.put("label", "c", value, 0);
+
+        assertNotNull(cache.get("label", "a"));
+        assertNull(cache.get("label", "b"));
+        assertTrue((Long) cache.stats().get("weight") <= 1024);
+        assertEquals(1L, cache.stats().get("evictions"));
+    }
+}
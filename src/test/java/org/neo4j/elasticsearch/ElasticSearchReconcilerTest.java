@@ -0,0 +1,242 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class ElasticSearchReconcilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ElasticSearchReconciler.Target target =
+            new ElasticSearchReconciler.Target("label", Collections.singletonMap("Label",
+                    new ElasticSearchIndexSpec("label", new HashSet<>(asList("foo", "bar", "baz")))), 16);
+
+    @Test
+    public void testGraphAndIndexProjectionsMatch() {
+        Gson gson = new Gson();
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("foo", "bar");
+        json.put("bar", 42);
+        json.put("baz", new double[]{1.5, 2.0});
+        json.put("other", true);
+
+        JsonObject source = new JsonParser().parse(gson.toJson(json)).getAsJsonObject();
+
+        assertEquals(target.project(json, gson), target.project(source));
+    }
+
+    @Test
+    public void testDocHashDependsOnIdAndSource() {
+        long hash = ElasticSearchReconciler.docHash("1", "{\"foo\":\"bar\"}");
+        assertEquals(hash, ElasticSearchReconciler.docHash("1", "{\"foo\":\"bar\"}"));
+        assertNotEquals(hash, ElasticSearchReconciler.docHash("2", "{\"foo\":\"bar\"}"));
+        assertNotEquals(hash, ElasticSearchReconciler.docHash("1", "{\"foo\":\"baz\"}"));
+    }
+
+    @Test
+    public void testCheckpointRoundTrip() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoint.properties");
+        ElasticSearchReconciler.Hashes graph = new ElasticSearchReconciler.Hashes(16);
+        graph.add(3, -42L);
+        graph.add(7, Long.MAX_VALUE);
+        ElasticSearchReconciler.Hashes indexed = new ElasticSearchReconciler.Hashes(16);
+        indexed.add(3, -42L);
+
+        ElasticSearchReconciler.Checkpoint checkpoint = new ElasticSearchReconciler.Checkpoint();
+        checkpoint.putHashes(target, graph, indexed);
+        checkpoint.markRepaired(target, asList(7));
+        checkpoint.save(file);
+
+        ElasticSearchReconciler.Checkpoint loaded = ElasticSearchReconciler.Checkpoint.load(file);
+        assertTrue(loaded.hasHashes(target));
+        assertArrayEquals(graph.hashes, loaded.graphHashes(target).hashes);
+        assertArrayEquals(indexed.counts, loaded.indexHashes(target).counts);
+        assertTrue(loaded.repaired(target).get(7));
+        assertFalse(loaded.repaired(target).get(3));
+    }
+
+    @Test
+    public void testScanProgressSurvivesInCheckpoint() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoint.properties");
+        ElasticSearchReconciler.Hashes graph = new ElasticSearchReconciler.Hashes(16);
+        graph.add(5, 99L);
+        ElasticSearchReconciler.Hashes slice = new ElasticSearchReconciler.Hashes(16);
+        slice.add(2, 7L);
+
+        ElasticSearchReconciler.Checkpoint checkpoint = new ElasticSearchReconciler.Checkpoint();
+        assertEquals(250, checkpoint.startHashes(target, 4, 250));
+        checkpoint.putGraphProgress(target, 2, graph, 0, 1234);
+        checkpoint.putSliceHashes(target, 1, slice);
+        checkpoint.save(file);
+
+        ElasticSearchReconciler.Checkpoint loaded = ElasticSearchReconciler.Checkpoint.load(file);
+        assertEquals("continued scans keep their node id ranges", 250, loaded.startHashes(target, 4, 300));
+        assertArrayEquals(new long[]{0, 1234}, loaded.graphPosition(target, 2));
+        assertArrayEquals(new long[]{0, -1}, loaded.graphPosition(target, 1));
+        assertArrayEquals(graph.hashes, loaded.partialGraphHashes(target, 2).hashes);
+        assertArrayEquals(slice.counts, loaded.sliceHashes(target, 1).counts);
+        assertNull(loaded.sliceHashes(target, 0));
+
+        assertEquals(300, loaded.startHashes(target, 2, 300));
+        assertNull(loaded.sliceHashes(target, 1));
+        assertArrayEquals(new long[]{0, -1}, loaded.graphPosition(target, 2));
+
+        loaded.putHashes(target, graph, slice);
+        assertTrue(loaded.hasHashes(target));
+    }
+
+    @Test
+    public void testMismatchedBucketsAreComparedInBoundedBatches() {
+        ElasticSearchReconciler.Hashes graph = new ElasticSearchReconciler.Hashes(8), indexed = new ElasticSearchReconciler.Hashes(8);
+        for (int i = 0; i < 60; i++) graph.add(1, i);
+        for (int i = 0; i < 50; i++) indexed.add(2, i);
+        for (int i = 0; i < 200; i++) indexed.add(3, i);
+        for (int i = 0; i < 30; i++) graph.add(6, i);
+        BitSet buckets = new BitSet();
+        buckets.set(1);
+        buckets.set(2);
+        buckets.set(3);
+        buckets.set(6);
+
+        List<BitSet> batches = ElasticSearchReconciler.batches(buckets, graph, indexed, 120);
+        assertEquals("[{1, 2}, {3}, {6}]", batches.toString());
+    }
+
+    @Test
+    public void testLabelsSharingAnIndexAreReconciledTogether() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase(folder.newFolder());
+        try {
+            try (Transaction tx = db.beginTx()) {
+                Node ann = db.createNode(Label.label("Person"));
+                ann.setProperty("sketchID", "1");
+                ann.setProperty("name", "Ann");
+                Node bob = db.createNode(Label.label("Author"));
+                bob.setProperty("sketchID", "2");
+                bob.setProperty("name", "Bob");
+                tx.success();
+            }
+            Map<String, String> documents = new LinkedHashMap<>();
+            documents.put("1", "{\"name\":\"Ann\"}");
+            documents.put("2", "{\"name\":\"Bob\"}");
+            documents.put("3", "{\"name\":\"Orphan\"}");
+            List<String> repairs = new ArrayList<>();
+            ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                    ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name),people:Author(name)"), true, true);
+
+            JestClient client = indexClient("people", documents, repairs);
+            ElasticSearchQueryCache queryCache = new ElasticSearchQueryCache(client, 1 << 20, 0);
+            ElasticSearchEventHandler handler = new ElasticSearchEventHandler(client, indexSettings);
+            handler.setQueryCache(queryCache);
+            ElasticSearchReconciler reconciler = new ElasticSearchReconciler(db, client, handler,
+                    indexSettings, new File(folder.getRoot(), "reconcile.properties"));
+            queryCache.put("people", "q", "stale", queryCache.generation("people"));
+            List<ElasticSearchReconciler.Report> reports = reconciler.reconcile(4, 1, 0, false);
+            assertNull("repairs invalidate cached results", queryCache.get("people", "q"));
+
+            assertEquals(1, reports.size());
+            assertEquals("Person,Author", reports.get(0).label);
+            assertEquals(2, reports.get(0).documents);
+            assertEquals(0, reports.get(0).indexed);
+            assertEquals(1, reports.get(0).deleted);
+            assertEquals(asList("delete people/3"), repairs);
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void testGraphIsScannedInNodeIdRanges() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase(folder.newFolder());
+        try {
+            Map<String, String> documents = new LinkedHashMap<>();
+            try (Transaction tx = db.beginTx()) {
+                for (int i = 0; i < 10; i++) {
+                    Node node = db.createNode(Label.label("Person"));
+                    node.setProperty("sketchID", String.valueOf(i));
+                    node.setProperty("name", "Person " + i);
+                    if (i != 7) documents.put(String.valueOf(i), "{\"name\":\"Person " + i + "\"}");
+                }
+                tx.success();
+            }
+            documents.put("orphan", "{\"name\":\"Orphan\"}");
+            List<String> repairs = new ArrayList<>();
+            ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                    ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), true, true);
+            JestClient client = indexClient("people", documents, repairs);
+            ElasticSearchReconciler reconciler = new ElasticSearchReconciler(db, client, new ElasticSearchEventHandler(client, indexSettings),
+                    indexSettings, new File(folder.getRoot(), "reconcile.properties"));
+
+            List<ElasticSearchReconciler.Report> reports = reconciler.reconcile(4, 3, 0, false);
+
+            assertEquals(10, reports.get(0).documents);
+            assertEquals(10, reports.get(0).indexedDocuments);
+            assertEquals(1, reports.get(0).indexed);
+            assertEquals(1, reports.get(0).deleted);
+            assertEquals(new HashSet<>(asList("index people/7", "delete people/orphan")), new HashSet<>(repairs));
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    /**
+     * Serves the documents of one index, spread over the scroll slices, to a single scroll page each and records the repair bulks as "method index/id".
+     */
+    static JestClient indexClient(String index, Map<String, String> documents, List<String> repairs) {
+        Gson gson = new Gson();
+        return (JestClient) Proxy.newProxyInstance(ElasticSearchReconcilerTest.class.getClassLoader(), new Class[]{JestClient.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("execute")) {
+                return null;
+            }
+            if (args[0] instanceof Bulk) {
+                for (String line : ((Bulk) args[0]).getData(gson).split("\n")) {
+                    JsonObject meta = new JsonParser().parse(line).getAsJsonObject();
+                    if (!meta.has("delete") && !meta.has("index")) continue;
+                    String bulkMethod = meta.has("delete") ? "delete" : "index";
+                    JsonObject target = meta.getAsJsonObject(bulkMethod);
+                    repairs.add(bulkMethod + " " + target.get("_index").getAsString() + "/" + target.get("_id").getAsString());
+                }
+                BulkResult result = new BulkResult(gson);
+                result.setSucceeded(true);
+                return result;
+            }
+            StringBuilder hits = new StringBuilder();
+            if (args[0] instanceof Search) {
+                JsonObject slice = new JsonParser().parse(((Search) args[0]).getData(gson)).getAsJsonObject().getAsJsonObject("slice");
+                int position = 0;
+                for (Map.Entry<String, String> document : documents.entrySet()) {
+                    if (slice != null && position++ % slice.get("max").getAsInt() != slice.get("id").getAsInt()) continue;
+                    if (hits.length() > 0) hits.append(',');
+                    hits.append("{\"_index\":\"").append(index).append("\",\"_id\":\"").append(document.getKey())
+                            .append("\",\"_source\":").append(document.getValue()).append('}');
+                }
+            }
+            JestResult result = args[0] instanceof Search ? new SearchResult(gson) : new JestResult(gson);
+            result.setJsonObject(new JsonParser().parse("{\"_scroll_id\":\"s\",\"hits\":{\"hits\":[" + hits + "]}}").getAsJsonObject());
+            result.setSucceeded(true);
+            return result;
+        });
+    }
+}
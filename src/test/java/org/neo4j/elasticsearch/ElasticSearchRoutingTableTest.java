@@ -0,0 +1,43 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.neo4j.elasticsearch.ElasticSearchIndexSpecParser.parseIndexSpec;
+
+public class ElasticSearchRoutingTableTest {
+
+    @Test
+    public void testRoutesCompiledPerLabel() throws Exception {
+        ElasticSearchRoutingTable routing = new ElasticSearchRoutingTable(
+                parseIndexSpec("typeahead:Person(name),people:Person(name,bio),events{createdAt}:Event(name)"));
+
+        List<ElasticSearchRoutingTable.Route> person = routing.routes(Label.label("Person"));
+        assertEquals(2, person.size());
+        assertEquals("typeahead", person.get(0).spec.getIndexName());
+        assertEquals("typeaheadSync", person.get(0).type);
+        assertEquals("createdAt", routing.getRoutingProperties().iterator().next());
+
+        List<ElasticSearchRoutingTable.Route> other = routing.routes(Label.label("Other"));
+        assertEquals("other", other.get(0).spec.getIndexName());
+        assertSame(other, routing.routes(Label.label("Other")));
+    }
+
+    @Test
+    public void testAddedAndRemovedRoutes() throws Exception {
+        ElasticSearchRoutingTable previous = new ElasticSearchRoutingTable(parseIndexSpec("people:Person(name),events:Event(name)"));
+        ElasticSearchRoutingTable routing = new ElasticSearchRoutingTable(parseIndexSpec("people:Person(name),typeahead:Person(name),events:Event(name,date)"));
+
+        List<ElasticSearchRoutingTable.Route> added = routing.added(previous);
+        assertEquals(2, added.size());
+        assertTrue(added.containsAll(routing.routes(Label.label("Event"))));
+        assertTrue(added.contains(routing.routes(Label.label("Person")).get(1)));
+
+        List<ElasticSearchRoutingTable.Route> removed = previous.added(routing);
+        assertEquals(1, removed.size());
+        assertEquals("Event", removed.get(0).label);
+    }
+}
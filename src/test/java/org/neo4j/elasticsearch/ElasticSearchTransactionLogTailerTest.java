@@ -0,0 +1,192 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.core.LabelTokenHolder;
+import org.neo4j.kernel.impl.core.PropertyKeyTokenHolder;
+import org.neo4j.kernel.impl.transaction.log.LogicalTransactionStore;
+import org.neo4j.kernel.impl.transaction.log.TransactionCursor;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class ElasticSearchTransactionLogTailerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseAPI db;
+    private ElasticSearchTransactionLogTailer tailer;
+    private ElasticSearchTransactionLogTailer.Tokens tokens;
+
+    @Before
+    public void setUp() throws Exception {
+        db = (GraphDatabaseAPI) new TestGraphDatabaseFactory().newImpermanentDatabase(folder.getRoot());
+        ElasticSearchRoutingTable routing = new ElasticSearchRoutingTable(ElasticSearchIndexSpecParser.parseIndexSpec("label{createdAt}:Label(foo)"));
+        tailer = new ElasticSearchTransactionLogTailer(db, null, () -> routing, new File("unused"));
+        DependencyResolver resolver = db.getDependencyResolver();
+        tokens = new ElasticSearchTransactionLogTailer.Tokens(resolver.resolveDependency(LabelTokenHolder.class),
+                resolver.resolveDependency(PropertyKeyTokenHolder.class));
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testDecodesCreatedAndUpdatedNodes() throws Exception {
+        long nodeId;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("foo", "bar");
+            nodeId = node.getId();
+            tx.success();
+        }
+        ElasticSearchChangeCapture.Changes changes = decodeLast();
+        assertEquals(1, changes.size);
+        assertEquals(ElasticSearchChangeCapture.UPSERT, changes.ops[0]);
+        assertEquals(nodeId, changes.nodeIds[0]);
+
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(nodeId).setProperty("foo", "baz");
+            tx.success();
+        }
+        changes = decodeLast();
+        assertEquals(1, changes.size);
+        assertEquals(nodeId, changes.nodeIds[0]);
+    }
+
+    @Test
+    public void testDecodesDeletedNodeWithIdAndLabels() throws Exception {
+        long nodeId;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("sketchID", 1000001);
+            nodeId = node.getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(nodeId).delete();
+            tx.success();
+        }
+        ElasticSearchChangeCapture.Changes changes = decodeLast();
+        assertEquals(1, changes.size);
+        assertEquals(ElasticSearchChangeCapture.DELETE, changes.ops[0]);
+        ElasticSearchChangeCapture.DeletedNode deleted = (ElasticSearchChangeCapture.DeletedNode) changes.payloads[0];
+        assertEquals("1000001", deleted.id);
+        assertEquals(singletonList(Label.label("Label")), deleted.labels);
+    }
+
+    @Test
+    public void testDecodesLabelChangesWithoutReindexingNode() throws Exception {
+        long nodeId;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("foo", "bar");
+            nodeId = node.getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(nodeId).addLabel(Label.label("Other"));
+            tx.success();
+        }
+        ElasticSearchChangeCapture.Changes changes = decodeLast();
+        assertEquals(1, changes.size);
+        assertEquals(ElasticSearchChangeCapture.ASSIGN_LABEL, changes.ops[0]);
+        assertEquals(Label.label("Other"), changes.payloads[0]);
+
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(nodeId).removeLabel(Label.label("Label"));
+            tx.success();
+        }
+        changes = decodeLast();
+        assertEquals(1, changes.size);
+        assertEquals(ElasticSearchChangeCapture.DELETE, changes.ops[0]);
+        ElasticSearchChangeCapture.DeletedNode removed = (ElasticSearchChangeCapture.DeletedNode) changes.payloads[0];
+        assertNull(removed.id);
+        assertEquals(singletonList(Label.label("Label")), removed.labels);
+    }
+
+    @Test
+    public void testDecodesDateChangeAsMoveToOtherIndex() throws Exception {
+        long nodeId;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("createdAt", 1489536000000L);
+            nodeId = node.getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(nodeId).setProperty("createdAt", 1492214400000L);
+            tx.success();
+        }
+        ElasticSearchChangeCapture.Changes changes = decodeLast();
+        assertEquals(2, changes.size);
+        assertEquals(ElasticSearchChangeCapture.UPSERT, changes.ops[0]);
+        assertEquals(ElasticSearchChangeCapture.DELETE, changes.ops[1]);
+        ElasticSearchChangeCapture.DeletedNode moved = (ElasticSearchChangeCapture.DeletedNode) changes.payloads[1];
+        assertEquals(1489536000000L, moved.properties.get("createdAt"));
+    }
+
+    @Test
+    public void testDecodesDateSetOnUndatedNodeAsMoveFromPlainIndex() throws Exception {
+        long nodeId;
+        try (Transaction tx = db.beginTx()) {
+            nodeId = db.createNode(Label.label("Label")).getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(nodeId).setProperty("createdAt", 1489536000000L);
+            tx.success();
+        }
+        ElasticSearchChangeCapture.Changes changes = decodeLast();
+        assertEquals(2, changes.size);
+        assertEquals(ElasticSearchChangeCapture.UPSERT, changes.ops[0]);
+        assertEquals(ElasticSearchChangeCapture.DELETE, changes.ops[1]);
+        ElasticSearchChangeCapture.DeletedNode moved = (ElasticSearchChangeCapture.DeletedNode) changes.payloads[1];
+        assertTrue(moved.properties.containsKey("createdAt"));
+        assertNull(moved.properties.get("createdAt"));
+    }
+
+    @Test
+    public void testDecodesDeletedNodeWithLongDocumentId() throws Exception {
+        String sketchID = "sketch-" + new String(new char[100]).replace('\0', 'x');
+        long nodeId;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("sketchID", sketchID);
+            nodeId = node.getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(nodeId).delete();
+            tx.success();
+        }
+        ElasticSearchChangeCapture.Changes changes = decodeLast();
+        assertEquals(1, changes.size);
+        assertEquals(ElasticSearchChangeCapture.DELETE, changes.ops[0]);
+        assertEquals(sketchID, ((ElasticSearchChangeCapture.DeletedNode) changes.payloads[0]).id);
+    }
+
+    private ElasticSearchChangeCapture.Changes decodeLast() throws Exception {
+        DependencyResolver resolver = db.getDependencyResolver();
+        long txId = resolver.resolveDependency(TransactionIdStore.class).getLastClosedTransactionId();
+        try (TransactionCursor cursor = resolver.resolveDependency(LogicalTransactionStore.class).getTransactions(txId)) {
+            assertTrue(cursor.next());
+            return tailer.decode(cursor.get(), tokens);
+        }
+    }
+}